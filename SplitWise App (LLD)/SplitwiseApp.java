@@ -1,4 +1,7 @@
 import java.util.*;
+import metrics.LatencyHistogram;
+import metrics.LongCounter;
+import metrics.MetricsRegistry;
 
 // Singleton Pattern
 class AccountManager {
@@ -115,6 +118,8 @@ class CreateExpenseCommand implements TransactionCommand {
 
 // Facade Pattern
 class ExpenseTracker {
+    private static final LongCounter EXPENSES_CREATED = MetricsRegistry.forApp("SplitwiseApp").counter("expensesCreated");
+    private static final LatencyHistogram CREATE_EVEN_EXPENSE = MetricsRegistry.forApp("SplitwiseApp").histogram("createEvenExpense");
     private AccountManager accountManager;
     private List<Bill> bills;
     private List<ChangeListener> listeners;
@@ -134,11 +139,14 @@ class ExpenseTracker {
     }
 
     public void createEvenExpense(double amount, List<Account> members) {
+        long start = System.nanoTime();
         BillFactory factory = new EvenBillFactory();
         Bill bill = factory.createBill(amount, members);
         bills.add(bill);
 
         notifyListeners();
+        EXPENSES_CREATED.increment();
+        CREATE_EVEN_EXPENSE.recordSince(start);
     }
 
     private void notifyListeners() {
@@ -198,5 +206,8 @@ public class SplitwiseApp {
         tracker.registerListener(new ExpenseChangeListener());
 
         tracker.createEvenExpense(150.0, Arrays.asList(account1, account2));
+
+        // Runtime metrics, also exposed over JMX
+        MetricsRegistry.forApp("SplitwiseApp").dump(System.out);
     }
 }
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Benchmark - A Single Recorded Keystroke (insert text or delete a range at an offset)
+class Keystroke {
+    private final int offset;
+    private final String inserted;
+    private final int deleted;
+
+    public Keystroke(int offset, String inserted, int deleted) {
+        this.offset = offset;
+        this.inserted = inserted;
+        this.deleted = deleted;
+    }
+
+    public String applyTo(String text) {
+        int at = Math.min(offset, text.length());
+        int end = Math.min(at + deleted, text.length());
+        return text.substring(0, at) + inserted + text.substring(end);
+    }
+
+    // Trace line format: "I <offset> <text>" or "D <offset> <length>"; "\n" in text stands for a newline
+    public static Keystroke parse(String line) {
+        String[] parts = line.split(" ", 3);
+        int offset = Integer.parseInt(parts[1]);
+        if (parts[0].equals("I")) {
+            return new Keystroke(offset, parts.length > 2 ? parts[2].replace("\\n", "\n") : " ", 0);
+        } else if (parts[0].equals("D")) {
+            return new Keystroke(offset, "", Integer.parseInt(parts[2]));
+        }
+        throw new IllegalArgumentException("Unknown keystroke: " + line);
+    }
+}
+
+// Benchmark - Keystroke Traces, either loaded from a file or synthesized from a seeded typing model
+class KeystrokeTrace {
+    private static final String IDENTIFIER_CHARS = "abcdefghijklmnopqrstuvwxyz_0123456789";
+
+    // Blank lines and lines starting with '#' are skipped; a trace with no keystrokes left is rejected
+    public static List<Keystroke> load(Path path) throws IOException {
+        List<Keystroke> keystrokes = new ArrayList<>();
+        for (String line : Files.readAllLines(path)) {
+            if (!line.isBlank() && !line.startsWith("#")) {
+                keystrokes.add(Keystroke.parse(line));
+            }
+        }
+        if (keystrokes.isEmpty()) {
+            throw new IllegalArgumentException("Trace " + path + " has no keystrokes (only blank or # comment lines)");
+        }
+        return keystrokes;
+    }
+
+    // Bursts of typing at a caret that occasionally jumps, with newlines and backspaces mixed in
+    public static List<Keystroke> synthesize(int length, int textSize, long seed) {
+        Random random = new Random(seed);
+        List<Keystroke> keystrokes = new ArrayList<>(length);
+        int caret = textSize / 2;
+        int size = textSize;
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(40) == 0) {
+                caret = random.nextInt(size + 1);
+            }
+            int roll = random.nextInt(100);
+            if (roll < 8 && caret > 0) {
+                keystrokes.add(new Keystroke(--caret, "", 1));
+                size--;
+            } else {
+                String typed = roll < 12 ? "\n" : roll < 25 ? " "
+                        : String.valueOf(IDENTIFIER_CHARS.charAt(random.nextInt(IDENTIFIER_CHARS.length())));
+                keystrokes.add(new Keystroke(caret++, typed, 0));
+                size++;
+            }
+        }
+        return keystrokes;
+    }
+}
+
+// Benchmark - Latency Percentiles and Allocation per Operation for One Scenario
+class LatencyReport {
+    private final String scenario;
+    private final long[] sortedNanos;
+    private final long allocatedBytes;
+
+    public LatencyReport(String scenario, long[] nanos, long allocatedBytes) {
+        this.scenario = scenario;
+        this.sortedNanos = nanos.clone();
+        Arrays.sort(sortedNanos);
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public String getScenario() {
+        return scenario;
+    }
+
+    public long percentile(double p) {
+        int index = (int) Math.ceil(p / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))];
+    }
+
+    public long bytesPerOperation() {
+        return allocatedBytes < 0 ? -1 : allocatedBytes / sortedNanos.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-44s ops=%-7d p50=%9.1fus p90=%9.1fus p99=%9.1fus p99.9=%9.1fus max=%9.1fus alloc/op=%s",
+                scenario, sortedNanos.length, percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                percentile(99.9) / 1e3, sortedNanos[sortedNanos.length - 1] / 1e3,
+                bytesPerOperation() < 0 ? "n/a" : bytesPerOperation() + "B");
+    }
+}
+
+// Benchmark - Measures an Operation per Invocation after a Warmup Phase
+class OperationTimer {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final int warmupOps;
+    private final int measuredOps;
+
+    public OperationTimer(int warmupOps, int measuredOps) {
+        this.warmupOps = warmupOps;
+        this.measuredOps = measuredOps;
+    }
+
+    public interface Operation {
+        void run(int iteration);
+    }
+
+    // Allocation is measured on the calling thread only; work handed to other threads is not counted
+    public LatencyReport measure(String scenario, Operation operation) {
+        for (int i = 0; i < warmupOps; i++) {
+            operation.run(i);
+        }
+        long[] nanos = new long[measuredOps];
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < measuredOps; i++) {
+            long start = System.nanoTime();
+            operation.run(warmupOps + i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        long allocated = THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new LatencyReport(scenario, nanos, allocated);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+}
+
+// Benchmark - Fails the Run when p99 Latency Regresses Past the Recorded Baseline
+class RegressionGate {
+    private final Properties baseline;
+    private final double allowedRegression;
+
+    public RegressionGate(Properties baseline, double allowedRegression) {
+        this.baseline = baseline;
+        this.allowedRegression = allowedRegression;
+    }
+
+    public static Properties record(List<LatencyReport> reports) {
+        Properties properties = new Properties();
+        for (LatencyReport report : reports) {
+            properties.setProperty(key(report.getScenario()), Long.toString(report.percentile(99)));
+        }
+        return properties;
+    }
+
+    public List<String> violations(List<LatencyReport> reports) {
+        List<String> violations = new ArrayList<>();
+        for (LatencyReport report : reports) {
+            String expected = baseline.getProperty(key(report.getScenario()));
+            if (expected == null) {
+                continue;
+            }
+            long limit = (long) (Long.parseLong(expected) * (1 + allowedRegression));
+            if (report.percentile(99) > limit) {
+                violations.add(report.getScenario() + ": p99 " + report.percentile(99) + "ns exceeds " + limit + "ns");
+            }
+        }
+        return violations;
+    }
+
+    private static String key(String scenario) {
+        return scenario.replaceAll("[^A-Za-z0-9]+", ".") + ".p99.nanos";
+    }
+}
+
+// Benchmark - Edit-Latency Suite for the Text IDE
+// Compile together with the app it measures, from the repository root:
+//   javac -sourcepath . -d out "TEXT IDE (LLD)/IDEApplication.java" "TEXT IDE (LLD)/EditLatencyBenchmark.java"
+// Usage: java -cp out EditLatencyBenchmark [--sizes 1024,65536,1048576,104857600] [--ops 2000] [--trace file]
+//        [--baseline file --max-regression 0.10] [--write-baseline file]
+// The 100MB size needs a large heap (e.g. -Xmx4g) since every edit copies the whole text; search indexing runs on a
+// background thread and is not part of the measured edit
+// The measured classes are package-private classes of IDEApplication.java, hence the auxiliaryclass suppression
+// Not JMH: the repository has no build tool to pull JMH in, so OperationTimer stands in for its harness with a
+// warmup phase, per-invocation timing (like Mode.SampleTime) and per-thread allocation counts (like the GC
+// profiler). Everything runs in one JVM (no forks), so JIT and GC state carry over between scenarios and sizes.
+@SuppressWarnings("auxiliaryclass")
+public class EditLatencyBenchmark {
+    private static final int[] OBSERVER_COUNTS = {1, 10, 100};
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args);
+        int[] sizes = Arrays.stream(options.getOrDefault("--sizes", "1024,65536,1048576").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        int ops = Integer.parseInt(options.getOrDefault("--ops", "2000"));
+        List<Keystroke> recordedTrace = options.containsKey("--trace") ? KeystrokeTrace.load(Paths.get(options.get("--trace"))) : null;
+
+        // The editor classes log every edit; keep console I/O out of the measurements
+        PrintStream console = System.out;
+        List<LatencyReport> reports = new ArrayList<>();
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int size : sizes) {
+                // Large files get fewer iterations so the run finishes in reasonable time
+                int measured = size >= 16 << 20 ? Math.max(20, ops / 100) : size >= 1 << 20 ? Math.max(20, ops / 20) : ops;
+                OperationTimer timer = new OperationTimer(measured / 2, measured);
+                String text = sampleSource(size);
+                List<Keystroke> trace = recordedTrace != null ? recordedTrace
+                        : KeystrokeTrace.synthesize(measured * 3 / 2, size, 42L);
+                for (LatencyReport report : runScenarios(timer, text, trace, size)) {
+                    reports.add(report);
+                    console.println(report);
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        if (options.containsKey("--write-baseline")) {
+            try (OutputStream out = Files.newOutputStream(Paths.get(options.get("--write-baseline")))) {
+                RegressionGate.record(reports).store(out, "Edit latency baseline (p99 nanoseconds)");
+            }
+        }
+        if (options.containsKey("--baseline")) {
+            Properties baseline = new Properties();
+            try (var in = Files.newInputStream(Paths.get(options.get("--baseline")))) {
+                baseline.load(in);
+            }
+            double allowed = Double.parseDouble(options.getOrDefault("--max-regression", "0.10"));
+            List<String> violations = new RegressionGate(baseline, allowed).violations(reports);
+            for (String violation : violations) {
+                System.out.println("REGRESSION " + violation);
+            }
+            if (!violations.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static List<LatencyReport> runScenarios(OperationTimer timer, String text, List<Keystroke> trace, int size) {
+        List<LatencyReport> reports = new ArrayList<>();
+        String label = humanSize(size);
+
+        TextEditor editor = new TextEditor(text);
+        reports.add(timer.measure("TextEditor.modifyText replay " + label, i -> {
+            editor.modifyText(trace.get(i % trace.size()).applyTo(editor.getText()));
+        }));
+
+        for (int observers : OBSERVER_COUNTS) {
+            FileController fileController = new FileController();
+            for (int i = 0; i < observers; i++) {
+                fileController.registerObserver(fileName -> { });
+            }
+            fileController.createFile("bench.java", text);
+            TextEditor fileEditor = fileController.getEditor("bench.java");
+            reports.add(timer.measure("FileController.updateFile " + observers + " observers " + label, i -> {
+                fileController.updateFile("bench.java", trace.get(i % trace.size()).applyTo(fileEditor.getText()));
+            }));
+        }
+
+        StateHistory history = new StateHistory();
+        reports.add(timer.measure("StateHistory save+restore " + label, i -> {
+            history.saveState(new TextSnapshot(text));
+            history.restoreState();
+        }));
+
+        String viewport = text.substring(0, Math.min(text.length(), 4096));
+        for (String language : new String[] {"java", "python"}) {
+            reports.add(timer.measure("HighlighterFactory+" + language + " viewport " + label, i -> {
+                HighlighterFactory.getHighlighter(language).highlight(viewport, 0, viewport.length());
+            }));
+        }
+        CodeHighlighter javaHighlighter = HighlighterFactory.getHighlighter("java");
+        OperationTimer fullPassTimer = new OperationTimer(2, size >= 16 << 20 ? 3 : 20);
+        reports.add(fullPassTimer.measure("CodeHighlighter.highlight full file " + label, i -> {
+            javaHighlighter.highlight(text, 0, text.length());
+        }));
+        return reports;
+    }
+
+    // Repeats a small Java class until the requested size is reached
+    private static String sampleSource(int size) {
+        String unit = "public class Sample {\n"
+                + "    // running total of processed items\n"
+                + "    private int count = 0;\n"
+                + "    public void add(String name) {\n"
+                + "        if (name != null) { count += 1; System.out.println(\"added \" + name); }\n"
+                + "    }\n"
+                + "}\n";
+        StringBuilder source = new StringBuilder(size + unit.length());
+        while (source.length() < size) {
+            source.append(unit);
+        }
+        source.setLength(size);
+        return source.toString();
+    }
+
+    private static String humanSize(int size) {
+        if (size >= 1 << 20) {
+            return (size >> 20) + "MB";
+        }
+        return size >= 1 << 10 ? (size >> 10) + "KB" : size + "B";
+    }
+
+    // Every option takes exactly one value; a flag without one is rejected rather than pairing with the next flag
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option but got \"" + args[i] + "\"");
+            }
+            if (i + 1 == args.length || args[i + 1].startsWith("--")) {
+                throw new IllegalArgumentException("Option " + args[i] + " needs a value");
+            }
+            options.put(args[i], args[i + 1]);
+        }
+        return options;
+    }
+}
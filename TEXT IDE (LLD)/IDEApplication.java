@@ -1,4 +1,21 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import metrics.LatencyHistogram;
+import metrics.LongCounter;
+import metrics.MetricsRegistry;
 
 // Observer Pattern - Interface for Listening to File Changes
 interface FileObserver {
@@ -7,7 +24,8 @@ interface FileObserver {
 
 // Observer Pattern - Editor Class Acting as a File Observer
 class TextEditor implements FileObserver {
-    private String text;
+    private volatile String text;
+    private final List<Consumer<String>> contentListeners = new CopyOnWriteArrayList<>();
 
     public TextEditor(String text) {
         this.text = text;
@@ -21,6 +39,19 @@ class TextEditor implements FileObserver {
     public void modifyText(String updatedText) {
         this.text = updatedText;
         System.out.println("Text content has been modified.");
+        for (Consumer<String> listener : contentListeners) {
+            listener.accept(updatedText);
+        }
+    }
+
+    // Lets derived state (the search index, highlights) stay in sync with every edit,
+    // including edits that bypass FileController such as undo and snapshot restores
+    void addContentListener(Consumer<String> listener) {
+        contentListeners.add(listener);
+    }
+
+    void removeContentListener(Consumer<String> listener) {
+        contentListeners.remove(listener);
     }
 
     public String getText() {
@@ -30,8 +61,21 @@ class TextEditor implements FileObserver {
 
 // Observer Pattern - File Manager for Handling Files and Observers
 class FileController {
+    private static final LongCounter FILE_UPDATES = MetricsRegistry.forApp("IDEApplication").counter("fileUpdates");
+    private static final LatencyHistogram UPDATE_FILE = MetricsRegistry.forApp("IDEApplication").histogram("updateFile");
     private List<FileObserver> observers = new ArrayList<>();
-    private Map<String, TextEditor> fileRecords = new HashMap<>();
+    private static final long REINDEX_DELAY_MILLIS = 200;
+
+    private Map<String, TextEditor> fileRecords = new ConcurrentHashMap<>();
+    private TrigramIndex searchIndex = new TrigramIndex();
+    // Files edited since they were last indexed, with an edit count so a reindex that raced an edit stays stale
+    private Map<String, Long> staleFiles = new ConcurrentHashMap<>();
+    private AtomicBoolean reindexScheduled = new AtomicBoolean();
+    private ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "trigram-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public void registerObserver(FileObserver observer) {
         observers.add(observer);
@@ -39,20 +83,46 @@ class FileController {
 
     public void createFile(String fileName, String content) {
         TextEditor editor = new TextEditor(content);
+        editor.addContentListener(text -> markStale(fileName));
         fileRecords.put(fileName, editor);
+        searchIndex.indexFile(fileName, content);
         notifyObservers(fileName);
     }
 
     public void updateFile(String fileName, String newContent) {
+        long start = System.nanoTime();
         TextEditor editor = fileRecords.get(fileName);
         if (editor != null) {
             editor.modifyText(newContent);
             notifyObservers(fileName);
+            FILE_UPDATES.increment();
+            UPDATE_FILE.recordSince(start);
         } else {
             System.out.println("Error: File \"" + fileName + "\" does not exist.");
         }
     }
 
+    // Edits never index on the typing thread: the file is marked stale, queries verify stale files directly,
+    // and one background pass per REINDEX_DELAY_MILLIS of editing brings the index back up to date
+    private void markStale(String fileName) {
+        staleFiles.merge(fileName, 1L, Long::sum);
+        if (reindexScheduled.compareAndSet(false, true)) {
+            indexer.schedule(this::reindexStaleFiles, REINDEX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reindexStaleFiles() {
+        reindexScheduled.set(false);
+        for (Map.Entry<String, Long> entry : staleFiles.entrySet()) {
+            TextEditor editor = fileRecords.get(entry.getKey());
+            if (editor != null) {
+                searchIndex.indexFile(entry.getKey(), editor.getText());
+            }
+            // Only clears the mark if no edit arrived while indexing; otherwise the next run picks it up
+            staleFiles.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
     private void notifyObservers(String fileName) {
         for (FileObserver observer : observers) {
             observer.onFileChange(fileName);
@@ -62,6 +132,419 @@ class FileController {
     public TextEditor getEditor(String fileName) {
         return fileRecords.get(fileName);
     }
+
+    // Streams every match to the sink as soon as a worker finds it; the sink must be thread-safe
+    public void findInFiles(String query, SearchMode mode, Consumer<SearchMatch> sink) {
+        findInFiles(new SearchQuery(query, mode), sink);
+    }
+
+    private void findInFiles(SearchQuery searchQuery, Consumer<SearchMatch> sink) {
+        // Stale files first: a reindex finishing between the two reads would otherwise drop a file from both
+        List<String> stale = new ArrayList<>(staleFiles.keySet());
+        Set<String> candidateFiles = new LinkedHashSet<>(searchIndex.candidates(searchQuery));
+        candidateFiles.addAll(stale);
+        List<String> candidates = new ArrayList<>(candidateFiles);
+        ForkJoinPool.commonPool().invoke(new FindInFilesTask(fileRecords, candidates, 0, candidates.size(), searchQuery, sink));
+    }
+
+    public List<SearchMatch> findInFiles(String query, SearchMode mode) {
+        List<SearchMatch> results = Collections.synchronizedList(new ArrayList<>());
+        findInFiles(query, mode, results::add);
+        return results;
+    }
+
+    // Rewrites are computed in parallel, then applied through updateFile so observers and the index stay consistent
+    public int replaceInFiles(String query, String replacement, SearchMode mode) {
+        SearchQuery searchQuery = new SearchQuery(query, mode);
+        Map<String, Integer> matchCounts = new ConcurrentHashMap<>();
+        findInFiles(searchQuery, match -> matchCounts.merge(match.getFileName(), 1, Integer::sum));
+
+        int replaced = 0;
+        for (Map.Entry<String, Integer> entry : matchCounts.entrySet()) {
+            TextEditor editor = fileRecords.get(entry.getKey());
+            if (editor != null) {
+                updateFile(entry.getKey(), searchQuery.replaceAll(editor.getText(), replacement));
+                replaced += entry.getValue();
+            }
+        }
+        return replaced;
+    }
+}
+
+// Search - Literal text or regular expression matching
+enum SearchMode {
+    LITERAL,
+    REGEX
+}
+
+// Search - A single hit inside a workspace file
+class SearchMatch {
+    private final String fileName;
+    private final int line;
+    private final int column;
+    private final String matchedText;
+
+    public SearchMatch(String fileName, int line, int column, String matchedText) {
+        this.fileName = fileName;
+        this.line = line;
+        this.column = column;
+        this.matchedText = matchedText;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getMatchedText() {
+        return matchedText;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + ":" + line + ":" + column + ": " + matchedText;
+    }
+}
+
+// Search - Compiled query plus the literal fragments every match must contain
+class SearchQuery {
+    private final String text;
+    private final SearchMode mode;
+    private final Pattern pattern;
+    private final List<String> requiredLiterals;
+
+    public SearchQuery(String text, SearchMode mode) {
+        if (text == null || text.isEmpty()) {
+            throw new IllegalArgumentException("Search query must not be empty.");
+        }
+        this.text = text;
+        this.mode = mode;
+        this.pattern = mode == SearchMode.REGEX ? Pattern.compile(text) : null;
+        this.requiredLiterals = mode == SearchMode.REGEX ? extractLiterals(text) : List.of(text);
+    }
+
+    public List<String> getRequiredLiterals() {
+        return requiredLiterals;
+    }
+
+    // Reports each match as (start, end) offsets in content order
+    public void forEachMatch(String content, MatchVisitor visitor) {
+        if (mode == SearchMode.LITERAL) {
+            int from = content.indexOf(text);
+            while (from >= 0) {
+                visitor.visit(from, from + text.length());
+                from = content.indexOf(text, from + text.length());
+            }
+        } else {
+            Matcher matcher = pattern.matcher(content);
+            while (matcher.find()) {
+                if (matcher.end() > matcher.start()) {
+                    visitor.visit(matcher.start(), matcher.end());
+                }
+            }
+        }
+    }
+
+    public String replaceAll(String content, String replacement) {
+        return mode == SearchMode.LITERAL
+                ? content.replace(text, replacement)
+                : pattern.matcher(content).replaceAll(replacement);
+    }
+
+    // Conservative: only plain runs outside groups, classes and optional quantifiers count,
+    // and alternation or inline flags/lookarounds disable narrowing altogether. Anything the scan cannot
+    // place with certainty (an unterminated escape or class) also disables narrowing, since a wrong
+    // required literal silently drops matching files.
+    private static List<String> extractLiterals(String regex) {
+        List<String> literals = new ArrayList<>();
+        if (regex.indexOf('|') >= 0 || regex.contains("(?")) {
+            return literals;
+        }
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int classDepth = 0;
+        boolean inQuantifier = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                int last = escapeEnd(regex, i);
+                if (last < 0) {
+                    return new ArrayList<>();
+                }
+                char next = regex.charAt(i + 1);
+                i = last;
+                if (classDepth > 0 || depth > 0) {
+                    continue;
+                }
+                if (Character.isLetterOrDigit(next)) {
+                    flushLiteral(run, literals);
+                } else {
+                    run.append(next);
+                }
+            } else if (classDepth > 0) {
+                if (c == '[') {
+                    classDepth++;
+                } else if (c == ']') {
+                    classDepth--;
+                }
+            } else if (c == '[') {
+                flushLiteral(run, literals);
+                classDepth = 1;
+                // A leading ']' (after an optional '^') is a member of the class, not its end
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (inQuantifier) {
+                inQuantifier = c != '}';
+            } else if (c == '{') {
+                // The atom before a {m,n} quantifier may be optional, so drop it from the run
+                if (depth == 0 && run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                flushLiteral(run, literals);
+                inQuantifier = true;
+            } else if (c == '(') {
+                flushLiteral(run, literals);
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (depth > 0) {
+                continue;
+            } else if (c == '?' || c == '*') {
+                // The preceding atom is optional, so it cannot be part of a required run
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                flushLiteral(run, literals);
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                flushLiteral(run, literals);
+            } else {
+                // Includes an unbalanced '}' or ']', which Pattern treats as a literal character
+                run.append(c);
+            }
+        }
+        if (classDepth > 0 || inQuantifier) {
+            return new ArrayList<>();
+        }
+        flushLiteral(run, literals);
+        return literals;
+    }
+
+    // Index of the last char of the escape starting at the backslash at i, or -1 if it is malformed.
+    // Multi-char escapes (hex, unicode, octal, control, named group, property, \Q...\E quoting, multi-digit
+    // back references) are skipped whole, so their digits and letters never leak into a literal run.
+    private static int escapeEnd(String regex, int i) {
+        if (i + 1 >= regex.length()) {
+            return -1;
+        }
+        int at = i + 1;
+        char kind = regex.charAt(at);
+        switch (kind) {
+            case 'x':
+                if (at + 1 < regex.length() && regex.charAt(at + 1) == '{') {
+                    return closingIndex(regex, at + 1, '}');
+                }
+                return at + 2 < regex.length() ? at + 2 : -1;
+            case 'u':
+                return at + 4 < regex.length() ? at + 4 : -1;
+            case '0':
+                int octal = at;
+                while (octal + 1 < regex.length() && octal - at < 3
+                        && regex.charAt(octal + 1) >= '0' && regex.charAt(octal + 1) <= '7') {
+                    octal++;
+                }
+                return octal;
+            case 'c':
+                return at + 1 < regex.length() ? at + 1 : -1;
+            case 'k':
+                return closingIndex(regex, at, '>');
+            case 'p':
+            case 'P':
+                if (at + 1 < regex.length() && regex.charAt(at + 1) == '{') {
+                    return closingIndex(regex, at + 1, '}');
+                }
+                return at + 1 < regex.length() ? at + 1 : -1;
+            case 'N':
+                return closingIndex(regex, at, '}');
+            case 'Q':
+                int quoteEnd = regex.indexOf("\\E", at);
+                return quoteEnd < 0 ? regex.length() - 1 : quoteEnd + 1;
+            default:
+                // Back references may run on into more digits
+                int digits = at;
+                while (Character.isDigit(kind) && digits + 1 < regex.length() && Character.isDigit(regex.charAt(digits + 1))) {
+                    digits++;
+                }
+                return digits;
+        }
+    }
+
+    private static int closingIndex(String regex, int from, char closing) {
+        return regex.indexOf(closing, from);
+    }
+
+    private static void flushLiteral(StringBuilder run, List<String> literals) {
+        if (run.length() >= TrigramIndex.GRAM_LENGTH) {
+            literals.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    interface MatchVisitor {
+        void visit(int start, int end);
+    }
+}
+
+// Search - Trigram Index Narrowing Candidate Files Before Verification
+class TrigramIndex {
+    static final int GRAM_LENGTH = 3;
+
+    private final Map<Long, Set<String>> postings = new ConcurrentHashMap<>();
+    private final Map<String, long[]> fileGrams = new ConcurrentHashMap<>();
+
+    // Diffs the file's old and new trigram sets so an edit only touches the postings that changed
+    public synchronized void indexFile(String fileName, String content) {
+        long[] previous = fileGrams.getOrDefault(fileName, new long[0]);
+        long[] current = trigrams(content);
+        int i = 0;
+        int j = 0;
+        while (i < previous.length || j < current.length) {
+            if (j == current.length || (i < previous.length && previous[i] < current[j])) {
+                removePosting(previous[i++], fileName);
+            } else if (i == previous.length || current[j] < previous[i]) {
+                postings.computeIfAbsent(current[j++], k -> ConcurrentHashMap.newKeySet()).add(fileName);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        fileGrams.put(fileName, current);
+    }
+
+    public synchronized void removeFile(String fileName) {
+        long[] previous = fileGrams.remove(fileName);
+        if (previous != null) {
+            for (long gram : previous) {
+                removePosting(gram, fileName);
+            }
+        }
+    }
+
+    // Files containing every trigram of every required literal; all files when the query has none
+    public List<String> candidates(SearchQuery query) {
+        Set<String> result = null;
+        for (String literal : query.getRequiredLiterals()) {
+            for (long gram : trigrams(literal)) {
+                Set<String> files = postings.get(gram);
+                if (files == null) {
+                    return new ArrayList<>();
+                }
+                if (result == null) {
+                    result = new HashSet<>(files);
+                } else {
+                    result.retainAll(files);
+                }
+                if (result.isEmpty()) {
+                    return new ArrayList<>();
+                }
+            }
+        }
+        return new ArrayList<>(result == null ? fileGrams.keySet() : result);
+    }
+
+    private void removePosting(long gram, String fileName) {
+        Set<String> files = postings.get(gram);
+        if (files != null) {
+            files.remove(fileName);
+            if (files.isEmpty()) {
+                postings.remove(gram, files);
+            }
+        }
+    }
+
+    // Sorted, de-duplicated trigrams with the three chars packed into one long
+    static long[] trigrams(String content) {
+        if (content.length() < GRAM_LENGTH) {
+            return new long[0];
+        }
+        long[] grams = new long[content.length() - GRAM_LENGTH + 1];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) content.charAt(i) << 32) | ((long) content.charAt(i + 1) << 16) | content.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (distinct == 0 || grams[i] != grams[distinct - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+}
+
+// Search - Fork/Join Verification of Candidate Files
+class FindInFilesTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int FILES_PER_TASK = 16;
+
+    private final Map<String, TextEditor> fileRecords;
+    private final List<String> candidates;
+    private final int from;
+    private final int to;
+    private final SearchQuery query;
+    private final Consumer<SearchMatch> sink;
+
+    public FindInFilesTask(Map<String, TextEditor> fileRecords, List<String> candidates, int from, int to,
+                           SearchQuery query, Consumer<SearchMatch> sink) {
+        this.fileRecords = fileRecords;
+        this.candidates = candidates;
+        this.from = from;
+        this.to = to;
+        this.query = query;
+        this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= FILES_PER_TASK) {
+            for (int i = from; i < to; i++) {
+                verifyFile(candidates.get(i));
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new FindInFilesTask(fileRecords, candidates, from, mid, query, sink),
+                new FindInFilesTask(fileRecords, candidates, mid, to, query, sink));
+    }
+
+    private void verifyFile(String fileName) {
+        TextEditor editor = fileRecords.get(fileName);
+        if (editor == null) {
+            return;
+        }
+        String content = editor.getText();
+        int[] cursor = {0, 1, 0}; // scanned offset, current line, offset of current line start
+        query.forEachMatch(content, (start, end) -> {
+            for (int i = cursor[0]; i < start; i++) {
+                if (content.charAt(i) == '\n') {
+                    cursor[1]++;
+                    cursor[2] = i + 1;
+                }
+            }
+            cursor[0] = start;
+            sink.accept(new SearchMatch(fileName, cursor[1], start - cursor[2] + 1, content.substring(start, end)));
+        });
+    }
 }
 
 // Command Pattern - Interface for Executing and Reversing Actions
@@ -97,28 +580,123 @@ class UndoAction implements Action {
 // Strategy Pattern - Interface for Code Highlighting
 interface CodeHighlighter {
     void applyHighlight(String code);
+
+    // Tokenizes code[from, to); implementations are stateless so one instance can serve every thread
+    List<HighlightSpan> highlight(String code, int from, int to);
 }
 
 // Strategy Pattern - Python Code Highlighter
 class PythonCodeHighlighter implements CodeHighlighter {
+    private static final TokenizerTable TABLE = TokenizerTable.compile("#[^\\n]*", "\"\"\"[\\s\\S]*?\"\"\"",
+            "and", "as", "class", "def", "elif", "else", "for", "from", "if", "import", "in", "is",
+            "lambda", "None", "not", "or", "pass", "return", "self", "True", "False", "while", "with", "yield");
+
     @Override
     public void applyHighlight(String code) {
         System.out.println("Highlighting Python code: " + code);
     }
+
+    @Override
+    public List<HighlightSpan> highlight(String code, int from, int to) {
+        return TABLE.tokenize(code, from, to);
+    }
 }
 
 // Strategy Pattern - Java Code Highlighter
 class JavaCodeHighlighter implements CodeHighlighter {
+    private static final TokenizerTable TABLE = TokenizerTable.compile("//[^\\n]*", "/\\*[\\s\\S]*?\\*/",
+            "abstract", "boolean", "break", "case", "class", "else", "extends", "final", "for", "if",
+            "implements", "import", "int", "interface", "new", "null", "private", "protected", "public",
+            "return", "static", "this", "void", "while");
+
     @Override
     public void applyHighlight(String code) {
         System.out.println("Highlighting Java code: " + code);
     }
+
+    @Override
+    public List<HighlightSpan> highlight(String code, int from, int to) {
+        return TABLE.tokenize(code, from, to);
+    }
+}
+
+// Highlighting - Token Categories
+enum TokenType {
+    COMMENT,
+    STRING,
+    NUMBER,
+    KEYWORD
+}
+
+// Highlighting - A Colored Range of Text
+class HighlightSpan {
+    private final int start;
+    private final int end;
+    private final TokenType type;
+
+    public HighlightSpan(int start, int end, TokenType type) {
+        this.start = start;
+        this.end = end;
+        this.type = type;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public TokenType getType() {
+        return type;
+    }
+}
+
+// Highlighting - Per-Language Lexer Compiled Once into a Single Alternation Pattern
+class TokenizerTable {
+    private static final TokenType[] GROUP_TYPES = TokenType.values();
+
+    private final Pattern pattern;
+
+    private TokenizerTable(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    public static TokenizerTable compile(String lineComment, String blockComment, String... keywords) {
+        String regex = "(" + lineComment + "|" + blockComment + ")"
+                + "|(\"(?:\\\\.|[^\"\\\\\\n])*\"|'(?:\\\\.|[^'\\\\\\n])*')"
+                + "|(\\b\\d+(?:\\.\\d+)?\\b)"
+                + "|(\\b(?:" + String.join("|", keywords) + ")\\b)";
+        return new TokenizerTable(Pattern.compile(regex));
+    }
+
+    public List<HighlightSpan> tokenize(String code, int from, int to) {
+        List<HighlightSpan> spans = new ArrayList<>();
+        Matcher matcher = pattern.matcher(code).region(from, to);
+        while (matcher.find()) {
+            for (int group = 1; group <= GROUP_TYPES.length; group++) {
+                if (matcher.start(group) >= 0) {
+                    spans.add(new HighlightSpan(matcher.start(), matcher.end(), GROUP_TYPES[group - 1]));
+                    break;
+                }
+            }
+        }
+        return spans;
+    }
 }
 
 // Factory Pattern - Factory to Create Syntax Highlighter
+// Flyweight Pattern - Highlighters are stateless, so one shared instance per language is handed out
 class HighlighterFactory {
+    private static final Map<String, CodeHighlighter> highlighters = new ConcurrentHashMap<>();
+
     public static CodeHighlighter getHighlighter(String language) {
-        switch (language.toLowerCase()) {
+        return highlighters.computeIfAbsent(language.toLowerCase(), HighlighterFactory::createHighlighter);
+    }
+
+    private static CodeHighlighter createHighlighter(String language) {
+        switch (language) {
             case "python":
                 return new PythonCodeHighlighter();
             case "java":
@@ -129,6 +707,162 @@ class HighlighterFactory {
     }
 }
 
+// Highlighting - Background Scheduler Prioritizing the Active Editor's Viewport
+// Open files are rescheduled from the editor's content listener, so undo and snapshot restores rehighlight too
+class HighlightScheduler {
+    static final int VIEWPORT_PRIORITY = 0;
+    static final int ACTIVE_FILE_PRIORITY = 1;
+    static final int BACKGROUND_PRIORITY = 2;
+
+    private final ThreadPoolExecutor workers;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, OpenFile> openFiles = new ConcurrentHashMap<>();
+    private volatile String activeFile;
+    private volatile int viewportStart;
+    private volatile int viewportEnd;
+
+    public HighlightScheduler(int threads) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+    }
+
+    public void openFile(String fileName, TextEditor editor, String language) {
+        OpenFile file = new OpenFile(editor, HighlighterFactory.getHighlighter(language), text -> schedule(fileName));
+        release(openFiles.put(fileName, file));
+        editor.addContentListener(file.listener);
+        schedule(fileName);
+    }
+
+    public void closeFile(String fileName) {
+        release(openFiles.remove(fileName));
+    }
+
+    // Viewport offsets are character positions in the active file's text
+    public void setActiveFile(String fileName, int viewportStart, int viewportEnd) {
+        this.activeFile = fileName;
+        this.viewportStart = viewportStart;
+        this.viewportEnd = viewportEnd;
+        schedule(fileName);
+    }
+
+    public List<HighlightSpan> getHighlights(String fileName) {
+        OpenFile file = openFiles.get(fileName);
+        return file == null ? Collections.emptyList() : file.spans;
+    }
+
+    // Lets already queued jobs finish before returning
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void release(OpenFile file) {
+        if (file != null) {
+            file.editor.removeContentListener(file.listener);
+            file.generation.incrementAndGet();
+        }
+    }
+
+    // A new generation makes every queued or running job for the file stale
+    private void schedule(String fileName) {
+        OpenFile file = openFiles.get(fileName);
+        if (file == null) {
+            return;
+        }
+        long generation = file.generation.incrementAndGet();
+        String text = file.editor.getText();
+        if (fileName.equals(activeFile)) {
+            int start = lineStart(text, Math.min(viewportStart, text.length()));
+            int end = lineEnd(text, Math.min(viewportEnd, text.length()));
+            workers.execute(new HighlightJob(file, generation, text, start, end, VIEWPORT_PRIORITY));
+            workers.execute(new HighlightJob(file, generation, text, 0, text.length(), ACTIVE_FILE_PRIORITY));
+        } else {
+            workers.execute(new HighlightJob(file, generation, text, 0, text.length(), BACKGROUND_PRIORITY));
+        }
+    }
+
+    private static int lineStart(String text, int offset) {
+        return text.lastIndexOf('\n', Math.max(offset - 1, 0)) + 1;
+    }
+
+    private static int lineEnd(String text, int offset) {
+        int end = text.indexOf('\n', offset);
+        return end < 0 ? text.length() : end;
+    }
+
+    private static class OpenFile {
+        final TextEditor editor;
+        final CodeHighlighter highlighter;
+        final Consumer<String> listener;
+        final AtomicLong generation = new AtomicLong();
+        volatile List<HighlightSpan> spans = Collections.emptyList();
+
+        OpenFile(TextEditor editor, CodeHighlighter highlighter, Consumer<String> listener) {
+            this.editor = editor;
+            this.highlighter = highlighter;
+            this.listener = listener;
+        }
+    }
+
+    private class HighlightJob implements Runnable, Comparable<HighlightJob> {
+        private final OpenFile file;
+        private final long generation;
+        private final String text;
+        private final int from;
+        private final int to;
+        private final int priority;
+        private final long order = sequence.getAndIncrement();
+
+        HighlightJob(OpenFile file, long generation, String text, int from, int to, int priority) {
+            this.file = file;
+            this.generation = generation;
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (file.generation.get() != generation) {
+                return;
+            }
+            List<HighlightSpan> fresh = file.highlighter.highlight(text, from, to);
+            synchronized (file) {
+                if (file.generation.get() != generation) {
+                    return;
+                }
+                // A viewport pass only replaces its own range; the rest is refreshed by the full pass queued behind it
+                List<HighlightSpan> merged = new ArrayList<>();
+                for (HighlightSpan span : file.spans) {
+                    if (span.getEnd() <= from) {
+                        merged.add(span);
+                    }
+                }
+                merged.addAll(fresh);
+                for (HighlightSpan span : file.spans) {
+                    if (span.getStart() >= to) {
+                        merged.add(span);
+                    }
+                }
+                file.spans = Collections.unmodifiableList(merged);
+            }
+        }
+
+        @Override
+        public int compareTo(HighlightJob other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
+
 // Decorator Pattern - Abstract Class for Extending Editor Features
 abstract class EditorFeature {
     public abstract void showFeatures();
@@ -221,6 +955,11 @@ public class IDEApplication {
         CodeHighlighter javaHighlighter = HighlighterFactory.getHighlighter("java");
         javaHighlighter.applyHighlight("public static void main(String[] args) {}");
 
+        // Background Highlighting
+        HighlightScheduler highlightScheduler = new HighlightScheduler(2);
+        highlightScheduler.openFile("example.java", fileController.getEditor("example.java"), "java");
+        highlightScheduler.setActiveFile("example.java", 0, 80);
+
         // Decorator Pattern
         EditorFeature basicEditor = new BasicTextEditor();
         EditorFeature enhancedEditor = new AutoCompleteDecorator(basicEditor);
@@ -239,11 +978,26 @@ public class IDEApplication {
             System.out.println("Restored content: " + fileController.getEditor("example.java").getText());
         }
 
+        // Find in Files
+        fileController.createFile("Greeter.java", "class Greeter {\n    void greet() {}\n}");
+        for (SearchMatch match : fileController.findInFiles("greet", SearchMode.LITERAL)) {
+            System.out.println("Found: " + match);
+        }
+        int replaced = fileController.replaceInFiles("void (\\w+)\\(\\)", "public void $1()", SearchMode.REGEX);
+        System.out.println("Replacements made: " + replaced);
+
+        highlightScheduler.openFile("Greeter.java", fileController.getEditor("Greeter.java"), "java");
+        highlightScheduler.shutdown();
+        System.out.println("Highlighted spans in Greeter.java: " + highlightScheduler.getHighlights("Greeter.java").size());
+
         // Singleton Pattern
         ThemeManager themeManager = ThemeManager.getInstance();
         themeManager.setTheme("Dark Mode");
 
         // Final State
         System.out.println("Final content of example.java: " + fileController.getEditor("example.java").getText());
+
+        // Runtime metrics, also exposed over JMX
+        MetricsRegistry.forApp("IDEApplication").dump(System.out);
     }
 }
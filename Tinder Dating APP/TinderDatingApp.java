@@ -1,6 +1,9 @@
 package TinderDatingApp;
 import java.time.LocalDateTime;
 import java.util.*;
+import metrics.LatencyHistogram;
+import metrics.LongCounter;
+import metrics.MetricsRegistry;
 
 // User class
 class User {
@@ -95,6 +98,8 @@ class Location {
 
 // PresenceManager class (Singleton)
 class PresenceManager {
+    private static final LongCounter PRESENCE_UPDATES = MetricsRegistry.forApp("TinderDatingApp").counter("presenceUpdates");
+    private static final LatencyHistogram SET_PRESENCE = MetricsRegistry.forApp("TinderDatingApp").histogram("setPresence");
     private static PresenceManager instance;
     private Map<User, Boolean> presenceMap;
     private List<PresenceObserver> observers;
@@ -112,8 +117,11 @@ class PresenceManager {
     }
 
     public void setPresence(User user, boolean online) {
+        long start = System.nanoTime();
         presenceMap.put(user, online);
         notifyObservers(user, online);
+        PRESENCE_UPDATES.increment();
+        SET_PRESENCE.recordSince(start);
     }
 
     public void addObserver(PresenceObserver observer) {
@@ -138,6 +146,8 @@ interface PresenceObserver {
 
 // MessagingSystem class (Publish-Subscribe)
 class MessagingSystem {
+    private static final LongCounter MESSAGES_PUBLISHED = MetricsRegistry.forApp("TinderDatingApp").counter("messagesPublished");
+    private static final LatencyHistogram PUBLISH_MESSAGE = MetricsRegistry.forApp("TinderDatingApp").histogram("publishMessage");
     private Map<String, List<Message>> messageHistory;
     private Map<User, List<String>> userChannels;
 
@@ -159,9 +169,12 @@ class MessagingSystem {
     }
 
     public void publishMessage(Message message, String channel) {
+        long start = System.nanoTime();
         List<Message> channelMessages = messageHistory.computeIfAbsent(channel, k -> new ArrayList<>());
         channelMessages.add(message);
         sendMessageToSubscribers(message, channel);
+        MESSAGES_PUBLISHED.increment();
+        PUBLISH_MESSAGE.recordSince(start);
     }
 
     private void sendMessageToSubscribers(Message message, String channel) {
@@ -288,6 +301,9 @@ public class TinderDatingApp {
         messagingSystem.subscribe(user1, "channel1");
         messagingSystem.publishMessage(new Message("msg1", user1, user2, "Hi Alice!"), "channel1");
 
+        // Presence
+        PresenceManager.getInstance().setPresence(user1, true);
+
         // Subscription manager
         SubscriptionManager subscriptionManager = new SubscriptionManager();
         subscriptionManager.addSubscriptionPlan(new SubscriptionPlan("plan1", "Gold Plan", 29.99));
@@ -295,5 +311,8 @@ public class TinderDatingApp {
         for (SubscriptionPlan plan : subscriptionManager.getSubscriptionPlans()) {
             System.out.println("Subscription Plan: " + plan.getName() + " - $" + plan.getPrice());
         }
+
+        // Runtime metrics, also exposed over JMX
+        MetricsRegistry.forApp("TinderDatingApp").dump(System.out);
     }
 }
@@ -0,0 +1,49 @@
+package WhatsappMessenger;
+
+import java.util.List;
+
+// Bulk send throughput with and without MessageEncryptionDecorator, and the slowdown factor between them.
+// Compile together with the app, from the repository root:
+//   javac -sourcepath . -d out "Whatsapp Messenger (LLD)/WhatsappMessenger.java" "Whatsapp Messenger (LLD)/EncryptionThroughputBenchmark.java"
+// Usage: java -cp out WhatsappMessenger.EncryptionThroughputBenchmark [messages] [contentBytes] [maxFactor]
+// Exits with status 1 when encrypted sends are more than maxFactor times slower than plaintext sends.
+@SuppressWarnings("auxiliaryclass") // Measures package-private classes of WhatsappMessenger.java
+public class EncryptionThroughputBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int contentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        double maxFactor = args.length > 2 ? Double.parseDouble(args[2]) : 4.0;
+
+        String content = "x".repeat(contentBytes);
+
+        double plainRate = 0;
+        double encryptedRate = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            // Best of several rounds, so JIT warmup and GC noise in early rounds do not count
+            plainRate = Math.max(plainRate, sendRate(messages, content, false));
+            encryptedRate = Math.max(encryptedRate, sendRate(messages, content, true));
+        }
+        double factor = plainRate / encryptedRate;
+        System.out.printf("plaintext: %,.0f msg/s, encrypted: %,.0f msg/s, slowdown: %.2fx (limit %.2fx)%n",
+                plainRate, encryptedRate, factor, maxFactor);
+        if (factor > maxFactor) {
+            System.exit(1);
+        }
+    }
+
+    private static double sendRate(int messages, String content, boolean encrypted) {
+        User sender = new User("bench-sender", "sender", "password");
+        List<User> receivers = List.of(new User("bench-receiver", "receiver", "password"));
+        MessageManager manager = new MessageManager();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            Message message = new Message("bench-" + i, sender, receivers, content);
+            Message outgoing = encrypted ? new MessageEncryptionDecorator(message) : message;
+            manager.sendMessage(outgoing);
+        }
+        long elapsed = System.nanoTime() - start;
+        return messages / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,107 @@
+package WhatsappMessenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Localhost load test for MessengerServer: for each connection count, opens that many clients, has each
+// one send to the next, and reports connection setup time and end-to-end messages per second (stored,
+// acked and pushed to the receiver).
+// Compile together with the app, from the repository root:
+//   javac -sourcepath . -d out "Whatsapp Messenger (LLD)/WhatsappMessenger.java" "Whatsapp Messenger (LLD)/TransportLoadTest.java"
+// Usage: java -cp out WhatsappMessenger.TransportLoadTest [connections,...] [messagesPerConnection] [contentBytes] [maxUnacked]
+// Exits with status 1 if any run fails to deliver every message.
+@SuppressWarnings("auxiliaryclass") // Measures package-private classes of WhatsappMessenger.java
+public class TransportLoadTest {
+    private static final int BUFFER_BYTES = 32 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String[] connectionCounts = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+        int messagesPerConnection = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int contentBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int maxUnacked = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        boolean complete = true;
+        for (String connections : connectionCounts) {
+            complete &= run(Integer.parseInt(connections.trim()), messagesPerConnection, "x".repeat(contentBytes), maxUnacked);
+        }
+        if (!complete) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(int connections, int messagesPerConnection, String content, int maxUnacked)
+            throws Exception {
+        BufferPool pool = new BufferPool(BUFFER_BYTES, 2 * connections + 64);
+        InetSocketAddress bind = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        long total = (long) connections * messagesPerConnection;
+        CountDownLatch delivered = new CountDownLatch((int) total);
+        List<MessengerClient> clients = new ArrayList<>(connections);
+        try (MessengerServer server = new MessengerServer(new MessageManager(), bind, maxUnacked, pool)) {
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+            long openStart = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                MessengerClient client = new MessengerClient(address, new User("load-" + i, "load-" + i, ""), maxUnacked, pool);
+                client.setListener(new TransportListener() {
+                    @Override
+                    public void onMessage(Message message) {
+                        delivered.countDown();
+                    }
+                });
+                clients.add(client);
+            }
+            // Every receiver must be online before the first send, or its pushes would go to history instead
+            for (MessengerClient client : clients) {
+                client.awaitAcks();
+            }
+            long openMillis = (System.nanoTime() - openStart) / 1_000_000;
+
+            int workers = Math.min(connections, 2 * Runtime.getRuntime().availableProcessors());
+            ExecutorService senders = Executors.newFixedThreadPool(workers);
+            long start = System.nanoTime();
+            List<Future<?>> sends = new ArrayList<>();
+            for (int worker = 0; worker < workers; worker++) {
+                int first = worker;
+                sends.add(senders.submit(() -> {
+                    for (int m = 0; m < messagesPerConnection; m++) {
+                        for (int i = first; i < connections; i += workers) {
+                            MessengerClient client = clients.get(i);
+                            User receiver = clients.get((i + 1) % connections).getUser();
+                            client.send(new Message(client.getUser().getUserId() + "-" + m, client.getUser(),
+                                    List.of(receiver), content));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> send : sends) {
+                send.get();
+            }
+            senders.shutdown();
+            boolean complete = delivered.await(60, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%,d connections (opened in %,d ms): %,d of %,d messages delivered in %.2f s, %,.0f msg/s%n",
+                    server.getConnectionCount(), openMillis, total - delivered.getCount(), total, seconds,
+                    (total - delivered.getCount()) / seconds);
+            return complete;
+        } finally {
+            for (MessengerClient client : clients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+}
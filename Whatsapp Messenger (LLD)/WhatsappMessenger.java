@@ -1,10 +1,87 @@
 package WhatsappMessenger;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import metrics.LatencyHistogram;
+import metrics.LongCounter;
+import metrics.MetricsRegistry;
 
 // User class
 class User {
@@ -39,93 +116,3137 @@ class Message {
     private String content;
     private LocalDateTime timestamp;
     private boolean isEncrypted;
-    private boolean isDelivered;
-    private boolean isRead;
+    private ReceiptBitmap delivered;
+    private ReceiptBitmap read;
+    private String conversationId;
 
     public Message(String messageId, User sender, List<User> receivers, String content) {
+        this(messageId, sender, receivers, content, LocalDateTime.now());
+    }
+
+    // Group messages carry the group id instead of a conversation id derived from every member
+    public Message(String messageId, User sender, List<User> receivers, String content, String conversationId) {
+        this(messageId, sender, receivers, content, LocalDateTime.now());
+        this.conversationId = conversationId;
+    }
+
+    // Decorators share the wrapped message's identity, timestamp and receipt state instead of copying them
+    protected Message(Message original) {
+        this.messageId = original.messageId;
+        this.sender = original.sender;
+        this.receivers = original.receivers;
+        this.content = original.content;
+        this.timestamp = original.timestamp;
+        this.isEncrypted = original.isEncrypted;
+        this.delivered = original.delivered;
+        this.read = original.read;
+        this.conversationId = original.getConversationId();
+    }
+
+    // Used when rebuilding a message from storage
+    Message(String messageId, User sender, List<User> receivers, String content, LocalDateTime timestamp) {
         this.messageId = messageId;
         this.sender = sender;
         this.receivers = receivers;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.isEncrypted = false;
-        this.isDelivered = false;
-        this.isRead = false;
+        this.delivered = new ReceiptBitmap(receivers.size());
+        this.read = new ReceiptBitmap(receivers.size());
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public User getSender() {
+        return sender;
+    }
+
+    public List<User> getReceivers() {
+        return receivers;
+    }
+
+    // Same participants, same conversation, whichever of them sent the message
+    public String getConversationId() {
+        if (conversationId == null) {
+            List<String> participants = new ArrayList<>();
+            participants.add(sender.getUserId());
+            for (User receiver : receivers) {
+                if (!participants.contains(receiver.getUserId())) {
+                    participants.add(receiver.getUserId());
+                }
+            }
+            Collections.sort(participants);
+            conversationId = String.join(":", participants);
+        }
+        return conversationId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public LocalDateTime getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isEncrypted() {
+        return isEncrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        isEncrypted = encrypted;
+    }
+
+    // Delivered to every receiver
+    public boolean isDelivered() {
+        return delivered.cardinality() == receivers.size();
+    }
+
+    public boolean isDeliveredTo(User receiver) {
+        int position = receiverPosition(receiver);
+        return position >= 0 && delivered.get(position);
+    }
+
+    public int getDeliveredCount() {
+        return delivered.cardinality();
+    }
+
+    void markDelivered(User receiver) {
+        int position = receiverPosition(receiver);
+        if (position >= 0) {
+            markDelivered(position);
+        }
+    }
+
+    void markDelivered(int receiverPosition) {
+        delivered.set(receiverPosition);
+    }
+
+    boolean isDeliveredAt(int receiverPosition) {
+        return delivered.get(receiverPosition);
+    }
+
+    boolean isReadAt(int receiverPosition) {
+        return read.get(receiverPosition);
+    }
+
+    // Read by every receiver
+    public boolean isRead() {
+        return read.cardinality() == receivers.size();
+    }
+
+    public boolean isReadBy(User receiver) {
+        int position = receiverPosition(receiver);
+        return position >= 0 && read.get(position);
+    }
+
+    // "Read by N of M" is getReadCount() of getReceiverCount(), both O(1)
+    public int getReadCount() {
+        return read.cardinality();
+    }
+
+    public int getReceiverCount() {
+        return receivers.size();
+    }
+
+    void markRead(User receiver) {
+        int position = receiverPosition(receiver);
+        if (position >= 0) {
+            markRead(position);
+        }
+    }
+
+    // Reading implies delivery
+    void markRead(int receiverPosition) {
+        delivered.set(receiverPosition);
+        read.set(receiverPosition);
+    }
+
+    // Linear in the receiver count; fan-out paths carry member positions instead of calling this
+    int receiverPosition(User receiver) {
+        for (int i = 0; i < receivers.size(); i++) {
+            if (receivers.get(i).getUserId().equals(receiver.getUserId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+// ReceiptBitmap class
+// One bit per receiver position plus a running count. Bits live in 1024-bit containers that are only
+// allocated once a bit inside them is set, so untouched ranges of a large group cost one null slot.
+class ReceiptBitmap {
+    private static final int WORDS_PER_CONTAINER = 16;
+    private static final int BITS_PER_CONTAINER = WORDS_PER_CONTAINER * 64;
+    private static final AtomicIntegerFieldUpdater<ReceiptBitmap> CARDINALITY =
+            AtomicIntegerFieldUpdater.newUpdater(ReceiptBitmap.class, "cardinality");
+
+    private final AtomicReferenceArray<AtomicLongArray> containers;
+    private volatile int cardinality;
+
+    public ReceiptBitmap(int size) {
+        this.containers = new AtomicReferenceArray<>((size + BITS_PER_CONTAINER - 1) / BITS_PER_CONTAINER);
+    }
+
+    // Returns true if the bit was newly set
+    public boolean set(int index) {
+        int slot = index / BITS_PER_CONTAINER;
+        AtomicLongArray container = containers.get(slot);
+        if (container == null) {
+            containers.compareAndSet(slot, null, new AtomicLongArray(WORDS_PER_CONTAINER));
+            container = containers.get(slot);
+        }
+        int word = (index % BITS_PER_CONTAINER) >>> 6;
+        long mask = 1L << index;
+        long current;
+        do {
+            current = container.get(word);
+            if ((current & mask) != 0) {
+                return false;
+            }
+        } while (!container.compareAndSet(word, current, current | mask));
+        CARDINALITY.incrementAndGet(this);
+        return true;
+    }
+
+    public boolean get(int index) {
+        AtomicLongArray container = containers.get(index / BITS_PER_CONTAINER);
+        return container != null && (container.get((index % BITS_PER_CONTAINER) >>> 6) & (1L << index)) != 0;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+}
+
+// MessageObserver interface
+interface MessageObserver {
+    void onMessageStored(Message message);
+}
+
+// MessageManager class
+// Messages are sharded by conversation id, so opening a chat reads one page of one conversation.
+// With a SegmentedMessageStore every message is written to disk and only the newest messages of each
+// conversation stay on the heap; pages that reach past them, or past a restart, are read from the store.
+// Messages leaving the heap window go to a bounded CompactMessageCache, which keeps their receipts.
+// The store belongs to this manager's user alone: it records each message once, as sent or as received
+// by that user, so two users' managers must not share one.
+class MessageManager {
+    private static final int DEFAULT_RESIDENT_MESSAGES = 1024;
+    private static final int COMPACT_CACHE_MESSAGES = 64 * 1024;
+    private static final LongCounter MESSAGES_SENT = MetricsRegistry.forApp("WhatsappMessenger").counter("messagesSent");
+    private static final LatencyHistogram SEND_MESSAGE = MetricsRegistry.forApp("WhatsappMessenger").histogram("sendMessage");
+    private final Map<String, ConversationLog> conversations;
+    private final List<MessageObserver> observers;
+    private final DeliveryPipeline deliveryPipeline;
+    private final SegmentedMessageStore store;
+    private final CompactMessageCache evictedMessages;
+    private final int residentMessages;
+    // Conversation id -> reader's user id -> number of the conversation's messages that reader has read
+    private final Map<String, Map<String, Integer>> readCursors = new ConcurrentHashMap<>();
+
+    // Local-only manager: sent messages are stored but not delivered anywhere
+    public MessageManager() {
+        this(null);
+    }
+
+    public MessageManager(DeliveryPipeline deliveryPipeline) {
+        this(deliveryPipeline, null, Integer.MAX_VALUE);
+    }
+
+    public MessageManager(DeliveryPipeline deliveryPipeline, SegmentedMessageStore store) {
+        this(deliveryPipeline, store, DEFAULT_RESIDENT_MESSAGES);
+    }
+
+    // residentMessages: per-conversation heap window kept in front of the store
+    public MessageManager(DeliveryPipeline deliveryPipeline, SegmentedMessageStore store, int residentMessages) {
+        this.conversations = new ConcurrentHashMap<>();
+        this.observers = new CopyOnWriteArrayList<>();
+        this.deliveryPipeline = deliveryPipeline;
+        this.store = store;
+        this.evictedMessages = store == null ? null : new CompactMessageCache(COMPACT_CACHE_MESSAGES);
+        this.residentMessages = residentMessages;
+    }
+
+    public void addObserver(MessageObserver observer) {
+        observers.add(observer);
+    }
+
+    public void sendMessage(Message message) {
+        long start = System.nanoTime();
+        ConversationLog log = conversationFor(message);
+        if (store != null) {
+            store.append(message, 0L, false);
+        }
+        log.append(message, true);
+        notifyObservers(message);
+        if (deliveryPipeline != null) {
+            deliveryPipeline.submit(message);
+        }
+        MESSAGES_SENT.increment();
+        SEND_MESSAGE.recordSince(start);
+    }
+
+    // Marks every message in the conversation up to and including upToMessageId as read by reader, starting
+    // from where that reader's previous call for this conversation stopped; each reader has its own cursor.
+    // Bits are set directly rather than as one batched receipt per message. When store-backed, messages
+    // evicted from the resident window are marked in the compact cache; if upToMessageId is in neither
+    // (evicted from the cache too, or from before a restart) nothing can be marked and this throws.
+    public void markConversationRead(String conversationId, String upToMessageId, User reader) {
+        ConversationLog log = conversations.get(conversationId);
+        if (log == null) {
+            if (store != null && store.hasConversation(conversationId)) {
+                throw new IllegalStateException("Receipts for message " + upToMessageId + " are no longer kept");
+            }
+            return;
+        }
+        Integer position = store == null ? Integer.valueOf(log.positionOf(upToMessageId)) : log.residentPosition(upToMessageId);
+        if (position == null) {
+            position = evictedMessages.positionOf(upToMessageId);
+            if (position == null) {
+                throw new IllegalStateException("Receipts for message " + upToMessageId + " are no longer kept");
+            }
+        }
+        int end = position + 1;
+        Map<String, Integer> cursors = readCursors.computeIfAbsent(conversationId, id -> new ConcurrentHashMap<>());
+        String readerId = reader.getUserId();
+        int start;
+        do {
+            Integer cursor = cursors.get(readerId);
+            start = cursor == null ? 0 : cursor;
+            if (end <= start) {
+                return;
+            }
+        } while (start == 0 ? cursors.putIfAbsent(readerId, end) != null : !cursors.replace(readerId, start, end));
+        for (Message message : log.after(start, end - start)) {
+            message.markRead(reader);
+        }
+        if (store != null) {
+            evictedMessages.markRead(conversationId, start, end, reader);
+        }
+    }
+
+    public void markRead(Message message, User reader) {
+        if (deliveryPipeline != null) {
+            deliveryPipeline.markRead(message, reader);
+        } else {
+            message.markRead(reader);
+        }
+    }
+
+    public void receiveMessage(Message message) {
+        ConversationLog log = conversationFor(message);
+        if (store != null) {
+            store.append(message, 0L, true);
+        }
+        log.append(message, false);
+        System.out.println("Message received: " + message.getContent());
+        notifyObservers(message);
+    }
+
+    private ConversationLog conversationFor(Message message) {
+        if (store == null) {
+            return conversations.computeIfAbsent(message.getConversationId(), id -> new ConversationLog());
+        }
+        return conversations.computeIfAbsent(message.getConversationId(),
+                id -> new ConversationLog(residentMessages, store.hasConversation(id), evictedMessages::put));
+    }
+
+    // Puts older messages from the store in front of a resident page that came up short
+    private List<Message> withOlderFromStore(String conversationId, ConversationLog log, List<Message> page,
+                                             String beforeMessageId, int limit) {
+        if (store == null || page.size() >= limit || (log != null && log.isComplete())) {
+            return page;
+        }
+        String anchor = page.isEmpty() ? beforeMessageId : page.get(0).getMessageId();
+        List<Message> older = evictedMessages.resolve(store.before(conversationId, anchor, limit - page.size()));
+        if (older.isEmpty()) {
+            return page;
+        }
+        List<Message> combined = new ArrayList<>(older);
+        combined.addAll(page);
+        return combined;
+    }
+
+    private void notifyObservers(Message message) {
+        for (MessageObserver observer : observers) {
+            observer.onMessageStored(message);
+        }
+    }
+
+    public List<String> getConversationIds() {
+        if (store == null) {
+            return new ArrayList<>(conversations.keySet());
+        }
+        Set<String> ids = new LinkedHashSet<>(conversations.keySet());
+        ids.addAll(store.getConversationIds());
+        return new ArrayList<>(ids);
+    }
+
+    // Null if the conversation has no message with that id. A message from past the resident window is a
+    // fresh copy, so receipts marked on it are not kept.
+    public Message getMessage(String conversationId, String messageId) {
+        ConversationLog log = conversations.get(conversationId);
+        Message message = log == null ? null : log.get(messageId);
+        if (message != null || store == null) {
+            return message;
+        }
+        Message cached = evictedMessages.get(messageId);
+        return cached != null ? cached : store.find(conversationId, messageId);
+    }
+
+    // Newest page of a conversation, oldest first
+    public List<Message> getRecentMessages(String conversationId, int limit) {
+        ConversationLog log = conversations.get(conversationId);
+        List<Message> page = log == null ? Collections.emptyList() : log.recent(limit);
+        return withOlderFromStore(conversationId, log, page, null, limit);
+    }
+
+    // Page of up to limit messages sent before messageId, oldest first; pass the first id of a page to go further back
+    public List<Message> getMessagesBefore(String conversationId, String messageId, int limit) {
+        ConversationLog log = conversations.get(conversationId);
+        if (store == null) {
+            return log == null ? Collections.emptyList() : log.before(messageId, limit);
+        }
+        List<Message> page = log == null ? null : log.residentBefore(messageId, limit);
+        if (page == null) {
+            return evictedMessages.resolve(store.before(conversationId, messageId, limit));
+        }
+        return withOlderFromStore(conversationId, log, page, messageId, limit);
+    }
+
+    // Walks every conversation, on disk too when store-backed; use the paged reads for chat views
+    public List<Message> getReceivedMessages() {
+        if (store != null) {
+            return evictedMessages.resolve(store.received());
+        }
+        List<Message> received = new ArrayList<>();
+        for (ConversationLog log : conversations.values()) {
+            log.collectIncoming(received);
+        }
+        return received;
+    }
+}
+
+// ConversationLog class
+// Append-only, chunked message log for one conversation. Appends are serialized per conversation;
+// reads never lock: they read the published size first, and every slot below it is fully written.
+// A log with a resident limit drops its oldest chunks once it holds more than that many messages, so a
+// store-backed manager keeps only recent messages on the heap; positions keep counting from the start.
+class ConversationLog {
+    private static final int CHUNK_SIZE = 256;
+
+    private final int residentLimit;
+    private final boolean olderHistoryElsewhere;
+    private final ObjIntConsumer<Message> evicted;
+    private volatile Chunk[] chunks = new Chunk[4];
+    private volatile int size;
+    private volatile int firstResident;
+    private final Map<String, Integer> positions = new ConcurrentHashMap<>();
+
+    public ConversationLog() {
+        this(Integer.MAX_VALUE, false, (message, position) -> { });
+    }
+
+    // olderHistoryElsewhere: the conversation already had messages, in a store, before this log was created;
+    // evicted is handed each message, with its position, as it leaves the resident window
+    public ConversationLog(int residentLimit, boolean olderHistoryElsewhere, ObjIntConsumer<Message> evicted) {
+        this.residentLimit = residentLimit;
+        this.olderHistoryElsewhere = olderHistoryElsewhere;
+        this.evicted = evicted;
+    }
+
+    // Returns the message's position in the conversation
+    public synchronized int append(Message message, boolean outgoing) {
+        int index = size;
+        int chunkIndex = index / CHUNK_SIZE;
+        Chunk[] current = chunks;
+        if (chunkIndex == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        if (current[chunkIndex] == null) {
+            current[chunkIndex] = new Chunk();
+        }
+        current[chunkIndex].messages[index % CHUNK_SIZE] = message;
+        current[chunkIndex].outgoing[index % CHUNK_SIZE] = outgoing;
+        chunks = current;
+        positions.putIfAbsent(message.getMessageId(), index);
+        size = index + 1;
+        if (size - firstResident - CHUNK_SIZE > residentLimit) {
+            evictOldestChunk(current);
+        }
+        return index;
+    }
+
+    // Readers take the chunk array before firstResident, so a reader that sees the emptied slot also
+    // sees the raised firstResident and never reads below it
+    private void evictOldestChunk(Chunk[] current) {
+        int chunkIndex = firstResident / CHUNK_SIZE;
+        Message[] messages = current[chunkIndex].messages;
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            positions.remove(messages[i].getMessageId());
+            evicted.accept(messages[i], chunkIndex * CHUNK_SIZE + i);
+        }
+        Chunk[] next = current.clone();
+        next[chunkIndex] = null;
+        firstResident += CHUNK_SIZE;
+        chunks = next;
+    }
+
+    // True while every message of the conversation is still in this log
+    public boolean isComplete() {
+        return !olderHistoryElsewhere && firstResident == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Message> recent(int limit) {
+        return range(size, limit);
+    }
+
+    public List<Message> before(String messageId, int limit) {
+        return range(positionOf(messageId), limit);
+    }
+
+    // Null when messageId is not resident
+    public List<Message> residentBefore(String messageId, int limit) {
+        Integer position = positions.get(messageId);
+        return position == null ? null : range(position, limit);
+    }
+
+    // Null when messageId is not resident
+    public Message get(String messageId) {
+        Integer position = positions.get(messageId);
+        if (position == null) {
+            return null;
+        }
+        Chunk chunk = chunks[position / CHUNK_SIZE];
+        return chunk == null ? null : chunk.messages[position % CHUNK_SIZE];
+    }
+
+    // Null when messageId is not resident
+    public Integer residentPosition(String messageId) {
+        return positions.get(messageId);
+    }
+
+    public int positionOf(String messageId) {
+        Integer position = positions.get(messageId);
+        if (position == null) {
+            throw new IllegalArgumentException("Unknown message id: " + messageId);
+        }
+        return position;
+    }
+
+    // Up to limit messages starting at position, oldest first
+    public List<Message> after(int position, int limit) {
+        int end = (int) Math.min((long) position + limit, size);
+        return end <= position ? Collections.emptyList() : range(end, end - position);
+    }
+
+    void collectIncoming(List<Message> into) {
+        int published = size;
+        Chunk[] snapshot = chunks;
+        for (int i = firstResident; i < published; i++) {
+            Chunk chunk = snapshot[i / CHUNK_SIZE];
+            if (!chunk.outgoing[i % CHUNK_SIZE]) {
+                into.add(chunk.messages[i % CHUNK_SIZE]);
+            }
+        }
+    }
+
+    private List<Message> range(int end, int limit) {
+        int published = size;
+        Chunk[] snapshot = chunks;
+        int to = Math.min(end, published);
+        int from = Math.max(firstResident, to - limit);
+        if (to <= from) {
+            return new ArrayList<>();
+        }
+        List<Message> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(snapshot[i / CHUNK_SIZE].messages[i % CHUNK_SIZE]);
+        }
+        return page;
+    }
+
+    private static class Chunk {
+        final Message[] messages = new Message[CHUNK_SIZE];
+        final boolean[] outgoing = new boolean[CHUNK_SIZE];
+    }
+}
+
+// ReceiptType enum
+enum ReceiptType {
+    DELIVERED,
+    READ
+}
+
+// Receipt class
+// One receiver's acknowledgement of a batch of messages. positions[i] is the receiver's position in
+// messages.get(i)'s receiver list, so applying a receipt sets bitmap bits without searching for the receiver.
+class Receipt {
+    private final User receiver;
+    private final ReceiptType type;
+    private final List<Message> messages;
+    private final int[] positions;
+
+    public Receipt(User receiver, ReceiptType type, List<Message> messages, int[] positions) {
+        this.receiver = receiver;
+        this.type = type;
+        this.messages = messages;
+        this.positions = positions;
+    }
+
+    public User getReceiver() {
+        return receiver;
+    }
+
+    public ReceiptType getType() {
+        return type;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    void apply() {
+        for (int i = 0; i < positions.length; i++) {
+            if (type == ReceiptType.DELIVERED) {
+                messages.get(i).markDelivered(positions[i]);
+            } else {
+                messages.get(i).markRead(positions[i]);
+            }
+        }
+    }
+}
+
+// ReceiptListener interface
+interface ReceiptListener {
+    // Called once per flushed batch, never once per receipt
+    void onReceipts(List<Receipt> batch);
+}
+
+// ReceiptBatcher class
+// Buffers receipts and applies them in batches, either when batchSize messages are pending or on a timer
+class ReceiptBatcher {
+    private final ConcurrentLinkedQueue<Receipt> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final List<ReceiptListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private final int batchSize;
+
+    public ReceiptBatcher(int batchSize, long flushIntervalMillis) {
+        this.batchSize = batchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "receipt-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void addListener(ReceiptListener listener) {
+        listeners.add(listener);
+    }
+
+    // Counted before it is queued, so a concurrent flush can never take the count below zero
+    public void record(Receipt receipt) {
+        int queued = pendingMessages.addAndGet(receipt.size());
+        pending.add(receipt);
+        if (queued >= batchSize && flushQueued.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Shut down: nothing will flush later, so apply it now
+                flush();
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        flushQueued.set(false);
+        List<Receipt> batch = new ArrayList<>();
+        int messages = 0;
+        Receipt receipt;
+        while ((receipt = pending.poll()) != null) {
+            batch.add(receipt);
+            messages += receipt.size();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pendingMessages.addAndGet(-messages);
+        for (Receipt applied : batch) {
+            applied.apply();
+        }
+        List<Receipt> published = Collections.unmodifiableList(batch);
+        for (ReceiptListener listener : listeners) {
+            listener.onReceipts(published);
+        }
+    }
+
+    public void shutdown() {
+        flusher.shutdown();
+        flush();
+    }
+}
+
+// DeliveryPipeline class
+// Fans each message out to one bounded queue per receiver. A receiver's queue is drained by a task on
+// the delivery executor only while that receiver is connected, so offline receivers hold no threads.
+// Past queueCapacity pending messages a receiver is backpressured; past queueCapacity + overflowCapacity
+// further messages are not queued at all but spilled: they stay in the sender's history, submit() reports
+// them, and the receiver catches up by paging the conversation once it reconnects.
+class DeliveryPipeline {
+    private static final int DRAIN_BATCH = 64;
+
+    private final Map<String, RecipientChannel> channels = new ConcurrentHashMap<>();
+    private final ExecutorService deliveryExecutor = newDeliveryExecutor();
+    private final ReceiptBatcher receipts;
+    private final int queueCapacity;
+    private final int overflowCapacity;
+
+    public DeliveryPipeline(int queueCapacity, int overflowCapacity, int receiptBatchSize, long receiptFlushMillis) {
+        this.queueCapacity = queueCapacity;
+        this.overflowCapacity = overflowCapacity;
+        this.receipts = new ReceiptBatcher(receiptBatchSize, receiptFlushMillis);
+    }
+
+    // Virtual threads where the runtime has them (Java 21+), otherwise a small platform pool
+    private static ExecutorService newDeliveryExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public void addReceiptListener(ReceiptListener listener) {
+        receipts.addListener(listener);
+    }
+
+    public void connect(User user, MessageManager inbox) {
+        RecipientChannel channel = channelFor(user);
+        channel.inbox = inbox;
+        scheduleDrain(channel);
+    }
+
+    public void disconnect(User user) {
+        channelFor(user).inbox = null;
+    }
+
+    // Never blocks the sender, whatever the state of the receivers. Returns how many receivers had a full
+    // queue and overflow and must read this message from history instead.
+    public int submit(Message message) {
+        List<User> receivers = message.getReceivers();
+        int spilled = 0;
+        for (int i = 0; i < receivers.size(); i++) {
+            User receiver = receivers.get(i);
+            if (receiver.getUserId().equals(message.getSender().getUserId())) {
+                // A sender listed among the receivers (e.g. a group member) has its own message already
+                message.markRead(i);
+                continue;
+            }
+            RecipientChannel channel = channelFor(receiver);
+            if (channel.enqueue(message, i)) {
+                scheduleDrain(channel);
+            } else {
+                spilled++;
+            }
+        }
+        return spilled;
+    }
+
+    public void markRead(Message message, User reader) {
+        int position = message.receiverPosition(reader);
+        if (position >= 0) {
+            receipts.record(new Receipt(reader, ReceiptType.READ, List.of(message), new int[] {position}));
+        }
+    }
+
+    public boolean isBackpressured(User user) {
+        RecipientChannel channel = channels.get(user.getUserId());
+        return channel != null && channel.backlog() > queueCapacity;
+    }
+
+    public int getBacklog(User user) {
+        RecipientChannel channel = channels.get(user.getUserId());
+        return channel == null ? 0 : channel.backlog();
+    }
+
+    // Messages this receiver missed because its queue and overflow were full
+    public long getSpilledCount(User user) {
+        RecipientChannel channel = channels.get(user.getUserId());
+        return channel == null ? 0 : channel.spilled();
+    }
+
+    public void flushReceipts() {
+        receipts.flush();
+    }
+
+    // Stops accepting work, lets in-flight deliveries finish and flushes outstanding receipts
+    public void shutdown() {
+        deliveryExecutor.shutdown();
+        try {
+            deliveryExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        receipts.shutdown();
+    }
+
+    private RecipientChannel channelFor(User user) {
+        return channels.computeIfAbsent(user.getUserId(),
+                id -> new RecipientChannel(user, queueCapacity + overflowCapacity));
+    }
+
+    private void scheduleDrain(RecipientChannel channel) {
+        if (channel.inbox != null && channel.backlog() > 0 && channel.draining.compareAndSet(false, true)) {
+            try {
+                deliveryExecutor.execute(() -> drain(channel));
+            } catch (RejectedExecutionException e) {
+                // Shut down: the backlog stays queued
+                channel.draining.set(false);
+            }
+        }
+    }
+
+    // Delivers in batches; each batch becomes one receipt
+    private void drain(RecipientChannel channel) {
+        Message[] batch = new Message[DRAIN_BATCH];
+        int[] positions = new int[DRAIN_BATCH];
+        try {
+            MessageManager inbox;
+            int count;
+            while ((inbox = channel.inbox) != null && (count = channel.poll(batch, positions)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    inbox.receiveMessage(batch[i]);
+                }
+                receipts.record(new Receipt(channel.user, ReceiptType.DELIVERED,
+                        Arrays.asList(Arrays.copyOf(batch, count)), Arrays.copyOf(positions, count)));
+                Arrays.fill(batch, 0, count, null);
+            }
+        } finally {
+            channel.draining.set(false);
+        }
+        // Work may have arrived between the last poll and releasing the drain flag
+        scheduleDrain(channel);
+    }
+
+    // Ring buffer of (message, receiver position) pairs that grows on demand up to its capacity, so idle
+    // receivers cost a few slots rather than a full queue
+    private static class RecipientChannel {
+        final User user;
+        final int capacity;
+        final AtomicBoolean draining = new AtomicBoolean();
+        volatile MessageManager inbox;
+        private Message[] messages = new Message[16];
+        private int[] positions = new int[16];
+        private int head;
+        private int size;
+        private long spilled;
+
+        RecipientChannel(User user, int capacity) {
+            this.user = user;
+            this.capacity = capacity;
+        }
+
+        synchronized boolean enqueue(Message message, int position) {
+            if (size == capacity) {
+                spilled++;
+                return false;
+            }
+            if (size == messages.length) {
+                grow();
+            }
+            int tail = (head + size) % messages.length;
+            messages[tail] = message;
+            positions[tail] = position;
+            size++;
+            return true;
+        }
+
+        synchronized int poll(Message[] intoMessages, int[] intoPositions) {
+            int count = Math.min(size, intoMessages.length);
+            for (int i = 0; i < count; i++) {
+                intoMessages[i] = messages[head];
+                intoPositions[i] = positions[head];
+                messages[head] = null;
+                head = (head + 1) % messages.length;
+            }
+            size -= count;
+            return count;
+        }
+
+        synchronized int backlog() {
+            return size;
+        }
+
+        synchronized long spilled() {
+            return spilled;
+        }
+
+        private void grow() {
+            int length = (int) Math.min(capacity, 2L * messages.length);
+            Message[] grownMessages = new Message[length];
+            int[] grownPositions = new int[length];
+            for (int i = 0; i < size; i++) {
+                grownMessages[i] = messages[(head + i) % messages.length];
+                grownPositions[i] = positions[(head + i) % messages.length];
+            }
+            messages = grownMessages;
+            positions = grownPositions;
+            head = 0;
+        }
+    }
+}
+
+// UserRegistry class
+// Interns users to dense int ids so compact messages can refer to them by number
+class UserRegistry {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<User> users = new ArrayList<>();
+
+    public synchronized int idOf(User user) {
+        Integer id = ids.get(user.getUserId());
+        if (id == null) {
+            id = users.size();
+            users.add(user);
+            ids.put(user.getUserId(), id);
+        }
+        return id;
+    }
+
+    public synchronized User userAt(int id) {
+        return users.get(id);
+    }
+}
+
+// ReceiverSetRegistry class
+// Interns receiver lists, so every message to the same group shares one receiver-set id. Lists are kept
+// in the order given: receipt bits are indexed by receiver position, so reordering them would move
+// every receipt onto the wrong receiver.
+class ReceiverSetRegistry {
+    private final Map<ReceiverSetKey, Integer> ids = new HashMap<>();
+    private final List<int[]> sets = new ArrayList<>();
+
+    public synchronized int idOf(int[] userIds) {
+        ReceiverSetKey key = new ReceiverSetKey(userIds.clone());
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = sets.size();
+            sets.add(key.userIds);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    // Shared array; callers must not modify it
+    public synchronized int[] membersOf(int setId) {
+        return sets.get(setId);
+    }
+
+    private static class ReceiverSetKey {
+        private final int[] userIds;
+        private final int hash;
+
+        ReceiverSetKey(int[] userIds) {
+            this.userIds = userIds;
+            this.hash = Arrays.hashCode(userIds);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ReceiverSetKey && Arrays.equals(userIds, ((ReceiverSetKey) other).userIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
+
+// CompactMessage class
+// Heap-lean form of a Message for caches: epoch millis, numeric sender and receiver-set ids, one flags
+// byte, a single UTF-8 array holding the message id followed by the content, and per-receiver receipts
+// as two bitsets (delivered, then read) indexed by receiver position.
+class CompactMessage {
+    static final byte ENCRYPTED = 1;
+
+    private final long epochMillis;
+    private final int senderId;
+    private final int receiverSetId;
+    private final short idLength;
+    private final byte flags;
+    private final byte[] payload;
+    private final byte[] receipts;
+
+    CompactMessage(long epochMillis, int senderId, int receiverSetId, byte flags, short idLength, byte[] payload,
+                   byte[] receipts) {
+        this.epochMillis = epochMillis;
+        this.senderId = senderId;
+        this.receiverSetId = receiverSetId;
+        this.flags = flags;
+        this.idLength = idLength;
+        this.payload = payload;
+        this.receipts = receipts;
+    }
+
+    public static CompactMessage from(Message message, UserRegistry users, ReceiverSetRegistry receiverSets) {
+        List<User> receivers = message.getReceivers();
+        int[] receiverIds = new int[receivers.size()];
+        for (int i = 0; i < receiverIds.length; i++) {
+            receiverIds[i] = users.idOf(receivers.get(i));
+        }
+        byte[] id = message.getMessageId().getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF) {
+            throw new IllegalArgumentException("Message id of " + id.length + " UTF-8 bytes exceeds the 65535-byte limit");
+        }
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = Arrays.copyOf(id, id.length + content.length);
+        System.arraycopy(content, 0, payload, id.length, content.length);
+        int half = receiptBytes(receiverIds.length);
+        byte[] receipts = new byte[2 * half];
+        for (int i = 0; i < receiverIds.length; i++) {
+            if (message.isDeliveredAt(i)) {
+                receipts[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+            if (message.isReadAt(i)) {
+                receipts[half + (i >>> 3)] |= (byte) (1 << (i & 7));
+            }
+        }
+        return new CompactMessage(message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                users.idOf(message.getSender()), receiverSets.idOf(receiverIds), message.isEncrypted() ? ENCRYPTED : 0,
+                (short) id.length, payload, receipts);
+    }
+
+    public Message toMessage(UserRegistry users, ReceiverSetRegistry receiverSets) {
+        List<User> receivers = new ArrayList<>();
+        for (int receiverId : receiverSets.membersOf(receiverSetId)) {
+            receivers.add(users.userAt(receiverId));
+        }
+        Message message = new Message(getMessageId(), users.userAt(senderId), receivers, getContent(),
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()));
+        message.setEncrypted(hasFlag(ENCRYPTED));
+        for (int i = 0; i < receivers.size(); i++) {
+            if (isReadBy(i)) {
+                message.markRead(i);
+            } else if (isDeliveredTo(i)) {
+                message.markDelivered(i);
+            }
+        }
+        return message;
+    }
+
+    static int receiptBytes(int receivers) {
+        return (receivers + 7) >>> 3;
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public int getReceiverSetId() {
+        return receiverSetId;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean isDeliveredTo(int receiverPosition) {
+        return (receipts[receiverPosition >>> 3] & (1 << (receiverPosition & 7))) != 0;
+    }
+
+    public boolean isReadBy(int receiverPosition) {
+        return (receipts[receipts.length / 2 + (receiverPosition >>> 3)] & (1 << (receiverPosition & 7))) != 0;
+    }
+
+    public String getMessageId() {
+        return new String(payload, 0, idLength & 0xFFFF, StandardCharsets.UTF_8);
+    }
+
+    public String getContent() {
+        return new String(payload, idLength & 0xFFFF, payload.length - (idLength & 0xFFFF), StandardCharsets.UTF_8);
+    }
+
+    int getIdLength() {
+        return idLength & 0xFFFF;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    byte[] getReceipts() {
+        return receipts;
+    }
+}
+
+// CompactMessageCache class
+// Bounded LRU of compact messages keyed by message id. A store-backed MessageManager parks messages here
+// when they leave its resident window, so their receipts outlive eviction (the store keeps no receipts),
+// and history read back from disk is answered from here when the message is cached. Each entry keeps its
+// position in the conversation, so a read cursor can still be advanced over cached messages.
+class CompactMessageCache {
+    private final UserRegistry users = new UserRegistry();
+    private final ReceiverSetRegistry receiverSets = new ReceiverSetRegistry();
+    private final Map<String, Entry> messages;
+    private final Map<String, NavigableMap<Integer, String>> positions = new HashMap<>();
+
+    public CompactMessageCache(int capacity) {
+        this.messages = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                forgetPosition(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public void put(Message message, int position) {
+        Entry entry = new Entry(CompactMessage.from(message, users, receiverSets), message.getConversationId(), position);
+        synchronized (messages) {
+            Entry previous = messages.put(message.getMessageId(), entry);
+            if (previous != null) {
+                forgetPosition(previous);
+            }
+            positions.computeIfAbsent(entry.conversationId, id -> new TreeMap<>()).put(position, message.getMessageId());
+        }
+    }
+
+    // Null if the message is not cached; otherwise a fresh Message with the cached receipts
+    public Message get(String messageId) {
+        CompactMessage compact;
+        synchronized (messages) {
+            Entry entry = messages.get(messageId);
+            compact = entry == null ? null : entry.message;
+        }
+        return compact == null ? null : compact.toMessage(users, receiverSets);
+    }
+
+    // Conversation position the message had when it was evicted, or null if it is not cached
+    public Integer positionOf(String messageId) {
+        synchronized (messages) {
+            Entry entry = messages.get(messageId);
+            return entry == null ? null : entry.position;
+        }
+    }
+
+    // Marks every cached message of the conversation at a position in [from, to) as read by reader
+    public void markRead(String conversationId, int from, int to, User reader) {
+        synchronized (messages) {
+            NavigableMap<Integer, String> byPosition = positions.get(conversationId);
+            if (byPosition == null) {
+                return;
+            }
+            for (String messageId : byPosition.subMap(from, to).values()) {
+                Entry entry = messages.get(messageId);
+                Message message = entry.message.toMessage(users, receiverSets);
+                message.markRead(reader);
+                entry.message = CompactMessage.from(message, users, receiverSets);
+            }
+        }
+    }
+
+    // Replaces each message that is cached with its cached form, in place
+    public List<Message> resolve(List<Message> page) {
+        for (int i = 0; i < page.size(); i++) {
+            Message cached = get(page.get(i).getMessageId());
+            if (cached != null) {
+                page.set(i, cached);
+            }
+        }
+        return page;
+    }
+
+    public int size() {
+        synchronized (messages) {
+            return messages.size();
+        }
+    }
+
+    private void forgetPosition(Entry entry) {
+        NavigableMap<Integer, String> byPosition = positions.get(entry.conversationId);
+        byPosition.remove(entry.position);
+        if (byPosition.isEmpty()) {
+            positions.remove(entry.conversationId);
+        }
+    }
+
+    private static class Entry {
+        CompactMessage message;
+        final String conversationId;
+        final int position;
+
+        Entry(CompactMessage message, String conversationId, int position) {
+            this.message = message;
+            this.conversationId = conversationId;
+            this.position = position;
+        }
+    }
+}
+
+// MessageCodec class
+// Wire and storage layout of a compact message:
+// [byte flags][long epochMillis][int senderId][int receiverSetId][short idLength][int contentLength]
+// [int receiptBytes][id][content][receipts]
+class MessageCodec {
+    static final int HEADER_BYTES = 1 + 8 + 4 + 4 + 2 + 4 + 4;
+
+    private MessageCodec() {}
+
+    public static int encodedSize(CompactMessage message) {
+        return HEADER_BYTES + message.getPayload().length + message.getReceipts().length;
+    }
+
+    // Writes at the buffer's position and advances it
+    public static void encode(CompactMessage message, ByteBuffer out) {
+        byte[] payload = message.getPayload();
+        byte[] receipts = message.getReceipts();
+        out.put(message.getFlags())
+                .putLong(message.getEpochMillis())
+                .putInt(message.getSenderId())
+                .putInt(message.getReceiverSetId())
+                .putShort((short) message.getIdLength())
+                .putInt(payload.length - message.getIdLength())
+                .putInt(receipts.length)
+                .put(payload)
+                .put(receipts);
+    }
+
+    // Copies the encoded message out of the buffer into its own heap form and advances the position
+    public static CompactMessage decode(ByteBuffer in) {
+        byte flags = in.get();
+        long epochMillis = in.getLong();
+        int senderId = in.getInt();
+        int receiverSetId = in.getInt();
+        short idLength = in.getShort();
+        byte[] payload = new byte[(idLength & 0xFFFF) + in.getInt()];
+        byte[] receipts = new byte[in.getInt()];
+        in.get(payload);
+        in.get(receipts);
+        return new CompactMessage(epochMillis, senderId, receiverSetId, flags, idLength, payload, receipts);
+    }
+
+    public static MessageView view(ByteBuffer buffer, int offset) {
+        return new MessageView(buffer, offset);
+    }
+}
+
+// MessageView class
+// Zero-copy reader over an encoded message; fields are read from the buffer on demand
+class MessageView {
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    MessageView(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public byte flags() {
+        return buffer.get(offset);
+    }
+
+    public long epochMillis() {
+        return buffer.getLong(offset + 1);
+    }
+
+    public int senderId() {
+        return buffer.getInt(offset + 9);
+    }
+
+    public int receiverSetId() {
+        return buffer.getInt(offset + 13);
+    }
+
+    public int encodedSize() {
+        return MessageCodec.HEADER_BYTES + idLength() + contentLength() + receiptLength();
+    }
+
+    public String messageId() {
+        return StandardCharsets.UTF_8.decode(slice(offset + MessageCodec.HEADER_BYTES, idLength())).toString();
+    }
+
+    // Read-only slice of the UTF-8 content sharing the underlying buffer
+    public ByteBuffer content() {
+        return slice(offset + MessageCodec.HEADER_BYTES + idLength(), contentLength()).asReadOnlyBuffer();
+    }
+
+    public boolean isDeliveredTo(int receiverPosition) {
+        return receiptBit(0, receiverPosition);
+    }
+
+    public boolean isReadBy(int receiverPosition) {
+        return receiptBit(receiptLength() / 2, receiverPosition);
+    }
+
+    private boolean receiptBit(int from, int receiverPosition) {
+        int receipts = offset + MessageCodec.HEADER_BYTES + idLength() + contentLength();
+        return (buffer.get(receipts + from + (receiverPosition >>> 3)) & (1 << (receiverPosition & 7))) != 0;
+    }
+
+    private int idLength() {
+        return buffer.getShort(offset + 17) & 0xFFFF;
+    }
+
+    private int contentLength() {
+        return buffer.getInt(offset + 19);
+    }
+
+    private int receiptLength() {
+        return buffer.getInt(offset + 23);
+    }
+
+    private ByteBuffer slice(int from, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(from + length).position(from);
+        return view.slice();
+    }
+}
+
+// MessageRecord class
+// On-disk layout of one message: [int length][int crc32][payload], payload being
+// timestamp, expiry, flags, conversation id, message id, sender id, int receiver count, receiver ids and
+// UTF-8 content. Strings carry an unsigned short length, so one longer than 65535 UTF-8 bytes is rejected.
+class MessageRecord {
+    static final int HEADER_BYTES = 8;
+    private static final int ENCRYPTED_FLAG = 1;
+    private static final int INCOMING_FLAG = 2;
+
+    private MessageRecord() {}
+
+    // Encodes into buffer from offset 0, or into a larger heap buffer if it does not fit; returns it flipped
+    public static ByteBuffer encode(Message message, long expiresAtMillis, ByteBuffer buffer) {
+        return encode(message, expiresAtMillis, false, buffer);
+    }
+
+    // As above, flagging the record as received by the store's owner rather than sent
+    public static ByteBuffer encode(Message message, long expiresAtMillis, boolean incoming, ByteBuffer buffer) {
+        int size = encodedSize(message);
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        write(message, expiresAtMillis, incoming, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static int encodedSize(Message message) {
+        int size = HEADER_BYTES + 8 + 8 + 1 + 4 + 4 + message.getContent().getBytes(StandardCharsets.UTF_8).length;
+        size += stringSize(message.getConversationId()) + stringSize(message.getMessageId())
+                + stringSize(message.getSender().getUserId());
+        for (User receiver : message.getReceivers()) {
+            size += stringSize(receiver.getUserId());
+        }
+        return size;
+    }
+
+    // Writes the record at the buffer's position and advances it; the buffer needs encodedSize bytes free
+    public static void write(Message message, long expiresAtMillis, ByteBuffer buffer) {
+        write(message, expiresAtMillis, false, buffer);
+    }
+
+    public static void write(Message message, long expiresAtMillis, boolean incoming, ByteBuffer buffer) {
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        List<User> receivers = message.getReceivers();
+        int start = buffer.position();
+        buffer.position(start + HEADER_BYTES);
+        buffer.putLong(message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        buffer.putLong(expiresAtMillis);
+        buffer.put((byte) ((message.isEncrypted() ? ENCRYPTED_FLAG : 0) | (incoming ? INCOMING_FLAG : 0)));
+        putString(buffer, message.getConversationId());
+        putString(buffer, message.getMessageId());
+        putString(buffer, message.getSender().getUserId());
+        buffer.putInt(receivers.size());
+        for (User receiver : receivers) {
+            putString(buffer, receiver.getUserId());
+        }
+        buffer.putInt(content.length);
+        buffer.put(content);
+        int end = buffer.position();
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(end).position(start + HEADER_BYTES);
+        crc.update(payload);
+        buffer.putInt(start, end - start - 4);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    // Length of the whole record at offset, or -1 if it is truncated or fails its checksum
+    public static int validLength(ByteBuffer log, int offset, int limit) {
+        if (offset + HEADER_BYTES > limit) {
+            return -1;
+        }
+        int length = log.getInt(offset);
+        if (length < HEADER_BYTES - 4 || offset + 4 + length > limit) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = log.duplicate();
+        payload.limit(offset + 4 + length).position(offset + HEADER_BYTES);
+        crc.update(payload);
+        return (int) crc.getValue() == log.getInt(offset + 4) ? length + 4 : -1;
+    }
+
+    public static long expiresAt(ByteBuffer log, int offset) {
+        return log.getLong(offset + HEADER_BYTES + 8);
+    }
+
+    public static boolean isIncoming(ByteBuffer log, int offset) {
+        return (log.get(offset + HEADER_BYTES + 16) & INCOMING_FLAG) != 0;
+    }
+
+    public static String conversationId(ByteBuffer log, int offset) {
+        ByteBuffer view = log.duplicate();
+        view.position(offset + HEADER_BYTES + 17);
+        return getString(view);
+    }
+
+    public static String messageId(ByteBuffer log, int offset) {
+        ByteBuffer view = log.duplicate();
+        view.position(offset + HEADER_BYTES + 17);
+        skipString(view);
+        return getString(view);
+    }
+
+    public static Message decode(ByteBuffer log, int offset, Function<String, User> users) {
+        ByteBuffer view = log.duplicate();
+        view.position(offset + HEADER_BYTES);
+        long timestamp = view.getLong();
+        view.getLong();
+        boolean encrypted = (view.get() & ENCRYPTED_FLAG) != 0;
+        skipString(view);
+        String messageId = getString(view);
+        User sender = users.apply(getString(view));
+        int receiverCount = view.getInt();
+        if (receiverCount < 0 || receiverCount > view.remaining() / 2) {
+            throw new IllegalArgumentException("Corrupt receiver count " + receiverCount + " in " + messageId);
+        }
+        List<User> receivers = new ArrayList<>(receiverCount);
+        for (int i = 0; i < receiverCount; i++) {
+            receivers.add(users.apply(getString(view)));
+        }
+        byte[] content = new byte[view.getInt()];
+        view.get(content);
+        Message message = new Message(messageId, sender, receivers, new String(content, StandardCharsets.UTF_8),
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()));
+        message.setEncrypted(encrypted);
+        return message;
+    }
+
+    static int stringSize(String value) {
+        return 2 + checkedLength(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) checkedLength(bytes));
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkedLength(byte[] utf8) {
+        if (utf8.length > 0xFFFF) {
+            throw new IllegalArgumentException("String of " + utf8.length + " UTF-8 bytes exceeds the 65535-byte limit");
+        }
+        return utf8.length;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.position(buffer.position() + length);
+    }
+}
+
+// SegmentedMessageStore class
+// Durable, append-only message log split into numbered segment files. Appends go through a FileChannel
+// and are fsynced in batches; reads go through memory-mapped segments. Each sealed segment has a sorted
+// (conversation hash, offset) index file, and only the active segment's index lives on the heap, so
+// neither restart nor steady-state heap use depends on how much history is on disk. Deleted and expired
+// messages are hidden on read and physically dropped by background compaction of sealed segments.
+// A store holds one user's messages, each flagged as sent or received by that user. A message id is stored
+// once: appends are checked against the ids of the active and previous segment, which covers a push that
+// is redelivered after a reconnect, and reads skip any id seen already.
+// Compaction publishes a rewritten segment under the next generation of its id, index first and log as
+// the commit point, before deleting the old pair, so a crash leaves one complete generation or the other.
+class SegmentedMessageStore implements Closeable {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String GENERATION_MARK = ".g";
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    private final Path directory;
+    private final Function<String, User> users;
+    private final long segmentBytes;
+    private final int syncBatch;
+    private final ScheduledExecutorService background;
+    private final Set<String> deletedIds = ConcurrentHashMap.newKeySet();
+    private final Object deletesLock = new Object();
+    private final Object compactionLock = new Object();
+    private FileChannel deletesLog;
+    private final Set<String> conversationIds = ConcurrentHashMap.newKeySet();
+    private final FileChannel conversationsLog;
+
+    private volatile List<Segment> sealed = new ArrayList<>();
+    private long activeId;
+    private FileChannel activeChannel;
+    private int activeSize;
+    private int unsynced;
+    private Map<String, OffsetList> activeIndex = new HashMap<>();
+    private Set<String> activeIds = new HashSet<>();
+    private Set<String> previousIds = new HashSet<>();
+    private MappedByteBuffer activeView;
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(512);
+
+    public SegmentedMessageStore(Path directory, Function<String, User> users) throws IOException {
+        this(directory, users, 64L << 20, 256, 20, 60_000);
+    }
+
+    public SegmentedMessageStore(Path directory, Function<String, User> users, long segmentBytes, int syncBatch,
+                                 long syncIntervalMillis, long compactionIntervalMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.users = users;
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+        this.syncBatch = syncBatch;
+        deletedIds.addAll(readIds(directory.resolve("deleted.ids")));
+        conversationIds.addAll(readIds(directory.resolve("conversations.ids")));
+        this.deletesLog = openIdLog("deleted.ids");
+        this.conversationsLog = openIdLog("conversations.ids");
+        recover();
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        background.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalMillis, compactionIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // expiresAtMillis of 0 keeps the message until it is deleted
+    public boolean append(Message message, long expiresAtMillis) {
+        return append(message, expiresAtMillis, false);
+    }
+
+    // incoming marks a message the store's user received rather than sent; returns false if the message id
+    // is already stored, in which case the first append's direction stands
+    public synchronized boolean append(Message message, long expiresAtMillis, boolean incoming) {
+        String messageId = message.getMessageId();
+        if (activeIds.contains(messageId) || previousIds.contains(messageId)) {
+            return false;
+        }
+        try {
+            encodeBuffer = MessageRecord.encode(message, expiresAtMillis, incoming, encodeBuffer);
+            int length = encodeBuffer.remaining();
+            if (activeSize > 0 && activeSize + length > segmentBytes) {
+                sealActive();
+            }
+            int offset = activeSize;
+            while (encodeBuffer.hasRemaining()) {
+                activeChannel.write(encodeBuffer, activeSize + encodeBuffer.position());
+            }
+            activeSize += length;
+            activeIndex.computeIfAbsent(message.getConversationId(), id -> new OffsetList()).add(offset);
+            activeIds.add(messageId);
+            if (conversationIds.add(message.getConversationId())) {
+                conversationsLog.write(ByteBuffer.wrap((message.getConversationId() + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            if (++unsynced >= syncBatch) {
+                background.execute(this::syncQuietly);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append message " + messageId, e);
+        }
+    }
+
+    public void delete(String messageId) {
+        try {
+            synchronized (deletesLock) {
+                if (deletedIds.add(messageId)) {
+                    deletesLog.write(ByteBuffer.wrap((messageId + "\n").getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to record deletion of " + messageId, e);
+        }
+    }
+
+    public List<String> getConversationIds() {
+        return new ArrayList<>(conversationIds);
+    }
+
+    public boolean hasConversation(String conversationId) {
+        return conversationIds.contains(conversationId);
+    }
+
+    // Newest live messages of a conversation, oldest first
+    public List<Message> recent(String conversationId, int limit) {
+        return before(conversationId, null, limit);
+    }
+
+    // Up to limit live messages older than beforeMessageId (all of them if it is null), oldest first;
+    // empty if beforeMessageId is not stored in the conversation
+    public List<Message> before(String conversationId, String beforeMessageId, int limit) {
+        List<Message> newestFirst = new ArrayList<>();
+        if (limit <= 0) {
+            return newestFirst;
+        }
+        boolean[] passed = {beforeMessageId == null};
+        walkNewestFirst(conversationId, (log, offset, messageId) -> {
+            if (!passed[0]) {
+                passed[0] = messageId.equals(beforeMessageId);
+                return true;
+            }
+            newestFirst.add(MessageRecord.decode(log, offset, users));
+            return newestFirst.size() < limit;
+        });
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    // The live message with this id, or null
+    public Message find(String conversationId, String messageId) {
+        Message[] found = new Message[1];
+        walkNewestFirst(conversationId, (log, offset, id) -> {
+            if (id.equals(messageId)) {
+                found[0] = MessageRecord.decode(log, offset, users);
+                return false;
+            }
+            return true;
+        });
+        return found[0];
+    }
+
+    // Every live message appended as incoming; reads the whole store
+    public List<Message> received() {
+        List<Message> received = new ArrayList<>();
+        for (String conversationId : conversationIds) {
+            List<Message> newestFirst = new ArrayList<>();
+            walkNewestFirst(conversationId, (log, offset, messageId) -> {
+                if (MessageRecord.isIncoming(log, offset)) {
+                    newestFirst.add(MessageRecord.decode(log, offset, users));
+                }
+                return true;
+            });
+            Collections.reverse(newestFirst);
+            received.addAll(newestFirst);
+        }
+        return received;
+    }
+
+    // Visits each live message id of a conversation once, newest first, until the visitor returns false
+    private void walkNewestFirst(String conversationId, RecordVisitor visitor) {
+        long now = System.currentTimeMillis();
+        Set<String> seen = new HashSet<>();
+        synchronized (this) {
+            OffsetList offsets = activeIndex.get(conversationId);
+            if (offsets != null) {
+                ByteBuffer view = activeView();
+                for (int i = offsets.size() - 1; i >= 0; i--) {
+                    if (!visitLive(view, offsets.get(i), conversationId, now, seen, visitor)) {
+                        return;
+                    }
+                }
+            }
+        }
+        List<Segment> segments = sealed;
+        long hash = conversationHash(conversationId);
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            for (int i = segment.lastEntry(hash); i >= 0 && segment.hashAt(i) == hash; i--) {
+                if (!visitLive(segment.log, segment.offsetAt(i), conversationId, now, seen, visitor)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean visitLive(ByteBuffer log, int offset, String conversationId, long now, Set<String> seen,
+                              RecordVisitor visitor) {
+        long expiresAt = MessageRecord.expiresAt(log, offset);
+        if ((expiresAt != 0 && expiresAt <= now) || !MessageRecord.conversationId(log, offset).equals(conversationId)) {
+            return true;
+        }
+        String messageId = MessageRecord.messageId(log, offset);
+        if (deletedIds.contains(messageId) || !seen.add(messageId)) {
+            return true;
+        }
+        return visitor.visit(log, offset, messageId);
+    }
+
+    // The channels are picked under the locks and forced outside them, so appends and deletes never wait
+    // on an fsync. A channel closed in the meantime was forced by whoever closed it (sealActive, compact).
+    public void sync() throws IOException {
+        FileChannel active = null;
+        synchronized (this) {
+            if (unsynced > 0) {
+                active = activeChannel;
+                unsynced = 0;
+            }
+        }
+        FileChannel deletes;
+        synchronized (deletesLock) {
+            deletes = deletesLog;
+        }
+        try {
+            if (active != null) {
+                active.force(false);
+            }
+        } catch (ClosedChannelException e) {
+            // Sealed since it was picked
+        }
+        conversationsLog.force(false);
+        try {
+            deletes.force(false);
+        } catch (ClosedChannelException e) {
+            // Replaced by compaction since it was picked
+        }
+    }
+
+    // Rewrites each sealed segment without its deleted or expired records. Runs are serialized: two at
+    // once would both write the next generation of the same segment.
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            compactSerialized();
+        }
+    }
+
+    private void compactSerialized() throws IOException {
+        long now = System.currentTimeMillis();
+        Set<String> dropped = new HashSet<>();
+        List<Segment> current = sealed;
+        List<Segment> compacted = new ArrayList<>(current.size());
+        for (Segment segment : current) {
+            Segment rewritten = compactSegment(segment, now, dropped);
+            if (rewritten != null) {
+                compacted.add(rewritten);
+            }
+        }
+        synchronized (this) {
+            // Segments sealed while compaction ran are appended untouched
+            List<Segment> latest = sealed;
+            List<Segment> sealedMeanwhile = latest.subList(current.size(), latest.size());
+            compacted.addAll(sealedMeanwhile);
+            sealed = compacted;
+            // An id stays deleted while a copy compaction did not see is still on disk
+            dropped.removeAll(activeIds);
+            for (Segment segment : sealedMeanwhile) {
+                removeStoredIds(segment.log, dropped);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            synchronized (deletesLock) {
+                deletedIds.removeAll(dropped);
+                Path rewritten = directory.resolve("deleted.ids.tmp");
+                try (FileChannel out = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer ids = ByteBuffer.wrap((String.join("\n", deletedIds) + "\n").getBytes(StandardCharsets.UTF_8));
+                    while (ids.hasRemaining()) {
+                        out.write(ids);
+                    }
+                    out.force(false);
+                }
+                Files.move(rewritten, directory.resolve("deleted.ids"), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                deletesLog.close();
+                deletesLog = openIdLog("deleted.ids");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sync();
+            activeChannel.truncate(activeSize);
+            activeChannel.close();
+            conversationsLog.close();
+        }
+        synchronized (deletesLock) {
+            deletesLog.close();
+        }
+    }
+
+    private static List<String> readIds(Path path) throws IOException {
+        List<String> ids = new ArrayList<>();
+        if (Files.exists(path)) {
+            for (String id : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!id.isEmpty()) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private FileChannel openIdLog(String name) throws IOException {
+        return FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static void removeStoredIds(ByteBuffer log, Set<String> ids) {
+        int offset = 0;
+        int length;
+        while (!ids.isEmpty() && (length = MessageRecord.validLength(log, offset, log.limit())) > 0) {
+            ids.remove(MessageRecord.messageId(log, offset));
+            offset += length;
+        }
+    }
+
+    private Segment compactSegment(Segment segment, long now, Set<String> dropped) throws IOException {
+        ByteBuffer log = segment.log;
+        List<int[]> live = new ArrayList<>();
+        boolean changed = false;
+        int length;
+        for (int offset = 0; offset < log.limit(); offset += length) {
+            length = MessageRecord.validLength(log, offset, log.limit());
+            if (length < 0) {
+                break;
+            }
+            long expiresAt = MessageRecord.expiresAt(log, offset);
+            String messageId = MessageRecord.messageId(log, offset);
+            if (deletedIds.contains(messageId)) {
+                dropped.add(messageId);
+                changed = true;
+            } else if (expiresAt != 0 && expiresAt <= now) {
+                changed = true;
+            } else {
+                live.add(new int[] {offset, length});
+            }
+        }
+        if (!changed) {
+            return segment;
+        }
+        if (live.isEmpty()) {
+            Files.deleteIfExists(segment.logPath);
+            Files.deleteIfExists(indexPath(segment.logPath));
+            return null;
+        }
+        Path logPath = segmentPath(segment.id, segment.generation + 1);
+        Path tmp = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        Map<String, OffsetList> index = new HashMap<>();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int position = 0;
+            for (int[] record : live) {
+                ByteBuffer slice = log.duplicate();
+                slice.limit(record[0] + record[1]).position(record[0]);
+                index.computeIfAbsent(MessageRecord.conversationId(log, record[0]), id -> new OffsetList()).add(position);
+                while (slice.hasRemaining()) {
+                    position += out.write(slice, position);
+                }
+            }
+            out.force(true);
+        }
+        // The new generation's index goes first; the log's rename is what makes the pair visible to recover()
+        writeIndex(indexPath(logPath), index);
+        Files.move(tmp, logPath, StandardCopyOption.ATOMIC_MOVE);
+        Segment rewritten = Segment.open(logPath, segment.id, segment.generation + 1);
+        Files.deleteIfExists(segment.logPath);
+        Files.deleteIfExists(indexPath(segment.logPath));
+        return rewritten;
+    }
+
+    private void sealActive() throws IOException {
+        activeChannel.truncate(activeSize);
+        activeChannel.force(false);
+        unsynced = 0;
+        activeChannel.close();
+        Path logPath = segmentPath(activeId, 0);
+        writeIndex(indexPath(logPath), activeIndex);
+        List<Segment> next = new ArrayList<>(sealed);
+        next.add(Segment.open(logPath, activeId, 0));
+        sealed = next;
+        previousIds = activeIds;
+        openActive(activeId + 1, 0, new HashMap<>(), new HashSet<>());
+    }
+
+    // The file is extended, sparsely, to the full segment size so that a single read-only mapping covers
+    // every append until the segment is sealed
+    private void openActive(long id, int size, Map<String, OffsetList> index, Set<String> ids) throws IOException {
+        activeId = id;
+        activeChannel = FileChannel.open(segmentPath(id, 0), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        activeChannel.truncate(size);
+        if (segmentBytes > size) {
+            activeChannel.write(ByteBuffer.allocate(1), segmentBytes - 1);
+        }
+        activeSize = size;
+        activeIndex = index;
+        activeIds = ids;
+        activeView = null;
+    }
+
+    // Mapped once per segment; remapped only if a record larger than the segment size overran the mapping
+    private ByteBuffer activeView() {
+        try {
+            if (activeView == null || activeView.limit() < activeSize) {
+                activeView = activeChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(activeSize, segmentBytes));
+            }
+            return activeView;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map active segment", e);
+        }
+    }
+
+    // Keeps the newest generation of each segment id and drops older generations, orphaned indexes and
+    // unfinished temporary files. Sealed segments are mapped as-is (rebuilding a missing index); the last
+    // segment becomes the active one after its torn tail, if any, is cut off
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path file : entries) {
+                files.add(file);
+            }
+        }
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp") || name.endsWith(".compact")) {
+                Files.deleteIfExists(file);
+            } else if (name.endsWith(LOG_SUFFIX)) {
+                Path kept = logs.get(segmentId(file));
+                if (kept == null || generation(file) > generation(kept)) {
+                    logs.put(segmentId(file), file);
+                }
+            }
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if ((name.endsWith(LOG_SUFFIX) && !logs.containsValue(file))
+                    || (name.endsWith(INDEX_SUFFIX) && !logs.containsValue(logPath(file)))) {
+                Files.deleteIfExists(file);
+            }
+        }
+        if (logs.isEmpty()) {
+            openActive(0, 0, new HashMap<>(), new HashSet<>());
+            return;
+        }
+        // A compacted last segment is sealed by definition; appends then go to a fresh one
+        Path last = logs.lastEntry().getValue();
+        boolean lastIsActive = generation(last) == 0;
+        List<Segment> segments = new ArrayList<>();
+        for (Path logPath : logs.values()) {
+            if (lastIsActive && logPath == last) {
+                break;
+            }
+            if (!Files.exists(indexPath(logPath))) {
+                try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                    Map<String, OffsetList> index = new HashMap<>();
+                    scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), index, new HashSet<>());
+                    writeIndex(indexPath(logPath), index);
+                }
+            }
+            segments.add(Segment.open(logPath, segmentId(logPath), generation(logPath)));
+        }
+        sealed = segments;
+        if (!lastIsActive) {
+            openActive(segmentId(last) + 1, 0, new HashMap<>(), new HashSet<>());
+            return;
+        }
+        Map<String, OffsetList> index = new HashMap<>();
+        Set<String> ids = new HashSet<>();
+        int validSize;
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ)) {
+            validSize = scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), index, ids);
+        }
+        openActive(segmentId(last), validSize, index, ids);
+    }
+
+    // Indexes every valid record, collecting its message id, and returns the offset just past the last one
+    private static int scan(ByteBuffer log, Map<String, OffsetList> index, Set<String> ids) {
+        int offset = 0;
+        int length;
+        while ((length = MessageRecord.validLength(log, offset, log.limit())) > 0) {
+            index.computeIfAbsent(MessageRecord.conversationId(log, offset), id -> new OffsetList()).add(offset);
+            ids.add(MessageRecord.messageId(log, offset));
+            offset += length;
+        }
+        return offset;
+    }
+
+    private static void writeIndex(Path path, Map<String, OffsetList> index) throws IOException {
+        int entries = 0;
+        for (OffsetList offsets : index.values()) {
+            entries += offsets.size();
+        }
+        long[] keys = new long[entries];
+        int[] offsetsByKey = new int[entries];
+        int i = 0;
+        for (Map.Entry<String, OffsetList> entry : index.entrySet()) {
+            long hash = conversationHash(entry.getKey());
+            for (int j = 0; j < entry.getValue().size(); j++) {
+                keys[i] = hash;
+                offsetsByKey[i++] = entry.getValue().get(j);
+            }
+        }
+        Integer[] order = new Integer[entries];
+        for (int k = 0; k < entries; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b])
+                : Integer.compare(offsetsByKey[a], offsetsByKey[b]));
+        ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_BYTES);
+        for (Integer k : order) {
+            buffer.putLong(keys[k]).putInt(offsetsByKey[k]);
+        }
+        buffer.flip();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 64-bit FNV-1a; collisions are resolved by comparing the stored conversation id on read
+    static long conversationHash(String conversationId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < conversationId.length(); i++) {
+            hash ^= conversationId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Generation 0 is the segment as sealed; each compaction of it writes the next generation
+    private Path segmentPath(long id, int generation) {
+        String name = String.format("%020d", id) + (generation == 0 ? "" : GENERATION_MARK + generation);
+        return directory.resolve(name + LOG_SUFFIX);
+    }
+
+    private static Path indexPath(Path logPath) {
+        String name = logPath.getFileName().toString();
+        return logPath.resolveSibling(name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static Path logPath(Path indexPath) {
+        String name = indexPath.getFileName().toString();
+        return indexPath.resolveSibling(name.substring(0, name.length() - INDEX_SUFFIX.length()) + LOG_SUFFIX);
+    }
+
+    private static long segmentId(Path logPath) {
+        String name = baseName(logPath);
+        int mark = name.indexOf(GENERATION_MARK);
+        return Long.parseLong(mark < 0 ? name : name.substring(0, mark));
+    }
+
+    private static int generation(Path logPath) {
+        String name = baseName(logPath);
+        int mark = name.indexOf(GENERATION_MARK);
+        return mark < 0 ? 0 : Integer.parseInt(name.substring(mark + GENERATION_MARK.length()));
+    }
+
+    private static String baseName(Path logPath) {
+        String name = logPath.getFileName().toString();
+        return name.substring(0, name.length() - LOG_SUFFIX.length());
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println("Message store sync failed: " + e.getMessage());
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.out.println("Message store compaction failed: " + e.getMessage());
+        }
+    }
+
+    private interface RecordVisitor {
+        boolean visit(ByteBuffer log, int offset, String messageId);
+    }
+
+    private static class Segment {
+        final Path logPath;
+        final long id;
+        final int generation;
+        final MappedByteBuffer log;
+        final MappedByteBuffer index;
+        final int entries;
+
+        private Segment(Path logPath, long id, int generation, MappedByteBuffer log, MappedByteBuffer index) {
+            this.logPath = logPath;
+            this.id = id;
+            this.generation = generation;
+            this.log = log;
+            this.index = index;
+            this.entries = index.limit() / INDEX_ENTRY_BYTES;
+        }
+
+        static Segment open(Path logPath, long id, int generation) throws IOException {
+            try (FileChannel log = FileChannel.open(logPath, StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(indexPath(logPath), StandardOpenOption.READ)) {
+                return new Segment(logPath, id, generation, log.map(FileChannel.MapMode.READ_ONLY, 0, log.size()),
+                        index.map(FileChannel.MapMode.READ_ONLY, 0, index.size()));
+            }
+        }
+
+        long hashAt(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_BYTES);
+        }
+
+        int offsetAt(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_BYTES + 8);
+        }
+
+        // Position of the last index entry with this hash, or -1 if there is none
+        int lastEntry(long hash) {
+            int low = 0;
+            int high = entries - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long key = hashAt(mid);
+                if (key <= hash) {
+                    if (key == hash) {
+                        found = mid;
+                    }
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static class OffsetList {
+        private int[] offsets = new int[4];
+        private int size;
+
+        void add(int offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        int get(int i) {
+            return offsets[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
+
+// GroupConversation class
+// A group's messages are stored once, in one ConversationLog. Each member has a read cursor, indexed by
+// the member's position in the group: the number of group messages that member has read.
+class GroupConversation {
+    private final String groupId;
+    private final ConversationLog log = new ConversationLog();
+    private final Map<String, Integer> positions = new ConcurrentHashMap<>();
+    private volatile List<User> members;
+    private volatile AtomicIntegerArray readCursors;
+
+    public GroupConversation(String groupId, List<User> members) {
+        this.groupId = groupId;
+        this.members = List.copyOf(members);
+        this.readCursors = new AtomicIntegerArray(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            positions.put(members.get(i).getUserId(), i);
+        }
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    // Immutable snapshot shared as the receiver list of every message sent while it is current
+    public List<User> getMembers() {
+        return members;
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    // New members start with everything already sent marked as read
+    public synchronized void addMember(User user) {
+        if (positions.containsKey(user.getUserId())) {
+            return;
+        }
+        List<User> next = new ArrayList<>(members);
+        next.add(user);
+        AtomicIntegerArray cursors = new AtomicIntegerArray(next.size());
+        for (int i = 0; i < members.size(); i++) {
+            cursors.set(i, readCursors.get(i));
+        }
+        cursors.set(members.size(), log.size());
+        readCursors = cursors;
+        positions.put(user.getUserId(), members.size());
+        members = List.copyOf(next);
+    }
+
+    public int positionOf(User user) {
+        Integer position = positions.get(user.getUserId());
+        if (position == null) {
+            throw new IllegalArgumentException(user.getUsername() + " is not a member of " + groupId);
+        }
+        return position;
+    }
+
+    public int append(Message message) {
+        return log.append(message, false);
+    }
+
+    public int size() {
+        return log.size();
+    }
+
+    public List<Message> recent(int limit) {
+        return log.recent(limit);
+    }
+
+    public int unreadCount(User member) {
+        return Math.max(0, log.size() - readCursors.get(positionOf(member)));
+    }
+
+    // Oldest unread messages first
+    public List<Message> unread(User member, int limit) {
+        return log.after(readCursors.get(positionOf(member)), limit);
+    }
+
+    // Cursors only move forward, so late or duplicate acknowledgements are harmless. Whoever advances the
+    // cursor sets the member's read bit on every message it moved past, in one pass. A count past the end of
+    // the log is clamped to it, so messages sent later still arrive unread.
+    public void markReadUpTo(User member, int messageCount) {
+        if (messageCount < 0) {
+            throw new IllegalArgumentException("Negative message count: " + messageCount);
+        }
+        int position = positionOf(member);
+        messageCount = Math.min(messageCount, log.size());
+        AtomicIntegerArray cursors;
+        int from = -1;
+        do {
+            // Retry on the new array if addMember replaced it while we were updating the old one
+            cursors = readCursors;
+            int current;
+            do {
+                current = cursors.get(position);
+            } while (current < messageCount && !cursors.compareAndSet(position, current, messageCount));
+            if (current < messageCount && (from < 0 || current < from)) {
+                from = current;
+            }
+        } while (cursors != readCursors);
+        if (from >= 0) {
+            for (Message message : log.after(from, messageCount - from)) {
+                if (position < message.getReceiverCount()) {
+                    message.markRead(position);
+                }
+            }
+        }
+    }
+}
+
+// GroupMessenger class
+// Small groups are fanned out on write: each message is pushed through the DeliveryPipeline into every
+// member's inbox. Groups larger than fanOutOnWriteLimit switch to fan-out on read: a send is one append
+// to the group log plus the sender's cursor update, and members page their unread messages from the log.
+class GroupMessenger {
+    private final DeliveryPipeline deliveryPipeline;
+    private final int fanOutOnWriteLimit;
+    private final Map<String, GroupConversation> groups = new ConcurrentHashMap<>();
+
+    public GroupMessenger(DeliveryPipeline deliveryPipeline, int fanOutOnWriteLimit) {
+        this.deliveryPipeline = deliveryPipeline;
+        this.fanOutOnWriteLimit = fanOutOnWriteLimit;
+    }
+
+    public GroupConversation createGroup(String groupId, List<User> members) {
+        GroupConversation group = new GroupConversation(groupId, members);
+        if (groups.putIfAbsent(groupId, group) != null) {
+            throw new IllegalArgumentException("Group already exists: " + groupId);
+        }
+        return group;
+    }
+
+    public GroupConversation getGroup(String groupId) {
+        return groups.get(groupId);
+    }
+
+    public boolean usesFanOutOnWrite(GroupConversation group) {
+        return deliveryPipeline != null && group.getMemberCount() <= fanOutOnWriteLimit;
+    }
+
+    public Message send(GroupConversation group, User sender, String messageId, String content) {
+        group.positionOf(sender);
+        Message message = new Message(messageId, sender, group.getMembers(), content, group.getGroupId());
+        int position = group.append(message);
+        group.markReadUpTo(sender, position + 1);
+        if (usesFanOutOnWrite(group)) {
+            deliveryPipeline.submit(message);
+        }
+        return message;
+    }
+}
+
+// FrameType enum
+// Transport frame layout: [int length][byte type][int sequence][body], length counting everything after itself.
+// Strings are [short length][UTF-8]; message bodies are MessageRecord encodings.
+enum FrameType {
+    HELLO,           // client -> server: [string userId]
+    SEND,            // either way: [message record]; the server pushes stored messages to online receivers
+    ACK,             // either way: acknowledges the HELLO, SEND or pushed SEND with the same sequence
+    RECEIPT,         // either way: [byte receipt type][string conversationId][string messageId][string userId]
+    HISTORY_REQUEST, // client -> server: [string conversationId][string beforeMessageId, empty for newest][short limit]
+    HISTORY_PAGE;    // server -> client, same sequence as the request: [short count][message record]...
+
+    private static final FrameType[] BY_CODE = values();
+
+    public byte code() {
+        return (byte) ordinal();
+    }
+
+    public static FrameType of(byte code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("Unknown frame type: " + code);
+        }
+        return BY_CODE[code];
+    }
+}
+
+// FrameCodec class
+class FrameCodec {
+    static final int HEADER_BYTES = 4 + 1 + 4;
+
+    private FrameCodec() {}
+
+    // Writes the header at the buffer's position; pass the returned start to end() once the body is written
+    public static int begin(ByteBuffer out, FrameType type, int sequence) {
+        int start = out.position();
+        out.putInt(0).put(type.code()).putInt(sequence);
+        return start;
+    }
+
+    public static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    // Size of the complete frame at the buffer's position, or -1 while more bytes are needed
+    public static int completeFrameLength(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length < HEADER_BYTES - 4 || length > in.capacity() - 4) {
+            throw new IllegalArgumentException("Bad frame length: " + length);
+        }
+        return in.remaining() - 4 >= length ? length + 4 : -1;
+    }
+
+    public static FrameType type(ByteBuffer in, int start) {
+        return FrameType.of(in.get(start + 4));
+    }
+
+    public static int sequence(ByteBuffer in, int start) {
+        return in.getInt(start + 5);
+    }
+}
+
+// BufferPool class
+// Fixed-size direct buffers shared by every connection, so steady-state socket I/O does not allocate them.
+// The buffer size is also the largest frame either side will send or accept.
+class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
+
+// FrameWriter class
+// Outgoing frames are encoded straight into pooled buffers. Small frames share a buffer, so one socket
+// write carries many of them, and each buffer goes back to the pool once it has been written out.
+// Not thread-safe: the server uses it from its selector thread, the client under a lock.
+class FrameWriter {
+    private final BufferPool pool;
+    private final Deque<ByteBuffer> ready = new ArrayDeque<>();
+    private ByteBuffer tail;
+
+    public FrameWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // Buffer positioned where a frame of frameBytes can be written
+    public ByteBuffer reserve(int frameBytes) {
+        if (frameBytes > pool.bufferSize()) {
+            throw new IllegalArgumentException("Frame of " + frameBytes + " bytes exceeds the "
+                    + pool.bufferSize() + "-byte limit");
+        }
+        if (tail != null && tail.remaining() < frameBytes) {
+            seal();
+        }
+        if (tail == null) {
+            tail = pool.acquire();
+        }
+        return tail;
+    }
+
+    // Writes as much as the channel accepts; returns true once nothing is left
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        seal();
+        while (!ready.isEmpty()) {
+            ByteBuffer head = ready.peekFirst();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                return false;
+            }
+            pool.release(ready.pollFirst());
+        }
+        return true;
+    }
+
+    public void release() {
+        if (tail != null) {
+            pool.release(tail);
+            tail = null;
+        }
+        ByteBuffer buffer;
+        while ((buffer = ready.pollFirst()) != null) {
+            pool.release(buffer);
+        }
+    }
+
+    // Buffers holding frames not yet written to the socket; grows while the peer is not reading
+    public int pendingBuffers() {
+        return ready.size() + (tail == null ? 0 : 1);
+    }
+
+    private void seal() {
+        if (tail != null && tail.position() > 0) {
+            tail.flip();
+            ready.addLast(tail);
+            tail = null;
+        }
+    }
+}
+
+// MessengerServer class
+// Selector-based server in front of a MessageManager. One thread owns every connection, so connection
+// state needs no locking. Frames produced while handling a selector pass are encoded into the target
+// connections' pooled buffers and flushed together at the end of the pass. Stored messages are pushed to
+// receivers that are online; at most maxUnacked pushes per connection wait for the client's ACK and the
+// rest queue on the server until acks come back. Offline receivers catch up through history pages.
+// A client that stops reading is disconnected once maxBacklog pushes queue for it or maxPendingBuffers
+// buffers of output wait for its socket; everything it missed is still in its history.
+class MessengerServer implements Closeable {
+    // Larger history requests are clamped; a page is cut to one frame anyway
+    static final int MAX_HISTORY_PAGE = 1024;
+
+    private final MessageManager messages;
+    private final BufferPool pool;
+    private final int maxUnacked;
+    private final int maxBacklog;
+    private final int maxPendingBuffers;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Map<String, Connection> online = new HashMap<>();
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Function<String, User> userLookup = this::userFor;
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+    private final Deque<Connection> dirty = new ArrayDeque<>();
+    private final Thread selectorThread;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong messagesStored = new AtomicLong();
+    private volatile boolean running = true;
+
+    public MessengerServer(MessageManager messages, InetSocketAddress address, int maxUnacked, BufferPool pool)
+            throws IOException {
+        this(messages, address, maxUnacked, 16 * maxUnacked, 64, pool);
+    }
+
+    public MessengerServer(MessageManager messages, InetSocketAddress address, int maxUnacked, int maxBacklog,
+                           int maxPendingBuffers, BufferPool pool) throws IOException {
+        this.messages = messages;
+        this.pool = pool;
+        this.maxUnacked = maxUnacked;
+        this.maxBacklog = maxBacklog;
+        this.maxPendingBuffers = maxPendingBuffers;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::run, "messenger-selector");
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        selectorThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getMessagesStored() {
+        return messagesStored.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (!selectorThread.isAlive()) {
+            serverChannel.close();
+            selector.close();
+            return;
+        }
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(keyHandler);
+                flushDirty();
+            }
+        } catch (IOException e) {
+            System.out.println("Messenger server stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            if (key.isReadable()) {
+                read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                markDirty(connection);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A broken or misbehaving client only loses its own connection
+            close(connection);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel, new FrameWriter(pool));
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount.incrementAndGet();
+        }
+    }
+
+    // Reads everything available and handles each complete frame in place in the pooled read buffer.
+    // An idle connection holds no buffer: it goes back to the pool when no partial frame is left.
+    private void read(Connection connection) throws IOException {
+        if (connection.in == null) {
+            connection.in = pool.acquire();
+        }
+        ByteBuffer in = connection.in;
+        int read;
+        while ((read = connection.channel.read(in)) > 0) {
+            in.flip();
+            int length;
+            while ((length = FrameCodec.completeFrameLength(in)) > 0) {
+                int start = in.position();
+                handleFrame(connection, in, start, start + length);
+                if (connection.closed) {
+                    // Its read buffer went back to the pool with it
+                    return;
+                }
+                in.position(start + length);
+            }
+            in.compact();
+        }
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        if (in.position() == 0) {
+            pool.release(in);
+            connection.in = null;
+        }
+    }
+
+    private void handleFrame(Connection connection, ByteBuffer in, int start, int end) {
+        FrameType type = FrameCodec.type(in, start);
+        int sequence = FrameCodec.sequence(in, start);
+        in.position(start + FrameCodec.HEADER_BYTES);
+        if (type == FrameType.HELLO) {
+            hello(connection, MessageRecord.getString(in), sequence);
+        } else if (connection.user == null) {
+            throw new IllegalStateException("Expected HELLO, got " + type);
+        } else if (type == FrameType.SEND) {
+            store(connection, in, start + FrameCodec.HEADER_BYTES, end, sequence);
+        } else if (type == FrameType.ACK) {
+            acknowledged(connection);
+        } else if (type == FrameType.RECEIPT) {
+            ReceiptType receiptType = in.get() == ReceiptType.READ.ordinal() ? ReceiptType.READ : ReceiptType.DELIVERED;
+            String conversationId = MessageRecord.getString(in);
+            String messageId = MessageRecord.getString(in);
+            Message message = messages.getMessage(conversationId, messageId);
+            // Only one of the message's receivers can report reading it
+            if (message != null && receiptType == ReceiptType.READ && message.receiverPosition(connection.user) >= 0) {
+                messages.markRead(message, connection.user);
+                forwardReceipt(message, ReceiptType.READ, connection.user);
+            }
+        } else if (type == FrameType.HISTORY_REQUEST) {
+            String conversationId = MessageRecord.getString(in);
+            String before = MessageRecord.getString(in);
+            int limit = in.getShort() & 0xFFFF;
+            if (limit == 0) {
+                throw new IllegalArgumentException("History limit must be positive");
+            }
+            sendHistory(connection, conversationId, before, Math.min(limit, MAX_HISTORY_PAGE), sequence);
+        } else {
+            throw new IllegalStateException("Unexpected " + type + " frame");
+        }
+    }
+
+    private void hello(Connection connection, String userId, int sequence) {
+        connection.user = userFor(userId);
+        Connection previous = online.put(userId, connection);
+        if (previous != null && previous != connection) {
+            close(previous);
+        }
+        writeAck(connection, sequence);
+    }
+
+    private void store(Connection connection, ByteBuffer in, int offset, int end, int sequence) {
+        if (MessageRecord.validLength(in, offset, end) < 0) {
+            throw new IllegalArgumentException("Corrupt message record");
+        }
+        Message message = MessageRecord.decode(in, offset, userLookup);
+        if (!message.getSender().getUserId().equals(connection.user.getUserId())) {
+            throw new IllegalStateException("Message sender does not match the connection's user");
+        }
+        messages.sendMessage(message);
+        messagesStored.incrementAndGet();
+        writeAck(connection, sequence);
+        List<User> receivers = message.getReceivers();
+        for (int i = 0; i < receivers.size(); i++) {
+            User receiver = receivers.get(i);
+            if (receiver.getUserId().equals(message.getSender().getUserId())) {
+                message.markRead(i);
+                continue;
+            }
+            Connection target = online.get(receiver.getUserId());
+            if (target != null) {
+                push(target, message);
+            }
+        }
+    }
+
+    private void push(Connection connection, Message message) {
+        if (connection.inFlight.size() < maxUnacked && connection.backlog.isEmpty()) {
+            writeSend(connection, message);
+        } else if (connection.backlog.size() < maxBacklog) {
+            connection.backlog.addLast(message);
+        } else {
+            close(connection);
+        }
+    }
+
+    // Acks arrive in push order, so the oldest in-flight push is the one being acknowledged
+    private void acknowledged(Connection connection) {
+        Message message = connection.inFlight.pollFirst();
+        if (message == null) {
+            return;
+        }
+        message.markDelivered(connection.user);
+        forwardReceipt(message, ReceiptType.DELIVERED, connection.user);
+        while (connection.inFlight.size() < maxUnacked && !connection.backlog.isEmpty()) {
+            writeSend(connection, connection.backlog.pollFirst());
+        }
+    }
+
+    private void forwardReceipt(Message message, ReceiptType type, User receiver) {
+        Connection sender = online.get(message.getSender().getUserId());
+        if (sender == null) {
+            return;
+        }
+        int size = FrameCodec.HEADER_BYTES + 1 + MessageRecord.stringSize(message.getConversationId())
+                + MessageRecord.stringSize(message.getMessageId()) + MessageRecord.stringSize(receiver.getUserId());
+        ByteBuffer out = sender.writer.reserve(size);
+        int start = FrameCodec.begin(out, FrameType.RECEIPT, sender.nextSequence++);
+        out.put((byte) type.ordinal());
+        MessageRecord.putString(out, message.getConversationId());
+        MessageRecord.putString(out, message.getMessageId());
+        MessageRecord.putString(out, receiver.getUserId());
+        FrameCodec.end(out, start);
+        markDirty(sender);
+    }
+
+    // A page that would not fit in one frame keeps its newest messages and drops the oldest; the client
+    // pages on from the first message it received
+    private void sendHistory(Connection connection, String conversationId, String before, int limit, int sequence) {
+        List<Message> page;
+        if (!participates(connection.user, conversationId)) {
+            // Same answer as for an empty conversation, so a stranger cannot probe which ones exist
+            page = Collections.emptyList();
+        } else if (before.isEmpty()) {
+            page = messages.getRecentMessages(conversationId, limit);
+        } else if (messages.getMessage(conversationId, before) != null) {
+            page = messages.getMessagesBefore(conversationId, before, limit);
+        } else {
+            page = Collections.emptyList();
+        }
+        int room = pool.bufferSize() - FrameCodec.HEADER_BYTES - 2;
+        int from = page.size();
+        while (from > 0 && MessageRecord.encodedSize(page.get(from - 1)) <= room) {
+            room -= MessageRecord.encodedSize(page.get(--from));
+        }
+        ByteBuffer out = connection.writer.reserve(pool.bufferSize() - room);
+        int start = FrameCodec.begin(out, FrameType.HISTORY_PAGE, sequence);
+        out.putShort((short) (page.size() - from));
+        for (int i = from; i < page.size(); i++) {
+            MessageRecord.write(page.get(i), 0L, out);
+        }
+        FrameCodec.end(out, start);
+        markDirty(connection);
     }
 
-    public String getMessageId() {
-        return messageId;
+    // The newest message's sender and receivers are the conversation's current participants: for a derived
+    // 1:1 id these are the users the id is built from, for a group id the members when it was last used
+    private boolean participates(User user, String conversationId) {
+        List<Message> newest = messages.getRecentMessages(conversationId, 1);
+        if (newest.isEmpty()) {
+            return false;
+        }
+        Message message = newest.get(0);
+        return message.getSender().getUserId().equals(user.getUserId()) || message.receiverPosition(user) >= 0;
     }
 
-    public User getSender() {
-        return sender;
+    private void writeSend(Connection connection, Message message) {
+        ByteBuffer out = connection.writer.reserve(FrameCodec.HEADER_BYTES + MessageRecord.encodedSize(message));
+        int start = FrameCodec.begin(out, FrameType.SEND, connection.nextSequence++);
+        MessageRecord.write(message, 0L, out);
+        FrameCodec.end(out, start);
+        connection.inFlight.addLast(message);
+        markDirty(connection);
     }
 
-    public List<User> getReceivers() {
-        return receivers;
+    private void writeAck(Connection connection, int sequence) {
+        ByteBuffer out = connection.writer.reserve(FrameCodec.HEADER_BYTES);
+        FrameCodec.end(out, FrameCodec.begin(out, FrameType.ACK, sequence));
+        markDirty(connection);
     }
 
-    public String getContent() {
-        return content;
+    // Called after every frame written to a connection, so this is also where a peer that has stopped
+    // reading is cut off
+    private void markDirty(Connection connection) {
+        if (connection.writer.pendingBuffers() > maxPendingBuffers) {
+            close(connection);
+            return;
+        }
+        if (!connection.dirty && !connection.closed) {
+            connection.dirty = true;
+            dirty.addLast(connection);
+        }
     }
 
-    public LocalDateTime getTimestamp() {
-        return timestamp;
+    // One write per connection per selector pass; whatever the socket does not take waits for OP_WRITE
+    private void flushDirty() {
+        Connection connection;
+        while ((connection = dirty.pollFirst()) != null) {
+            connection.dirty = false;
+            if (connection.closed) {
+                continue;
+            }
+            try {
+                boolean flushed = connection.writer.writeTo(connection.channel);
+                connection.key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
     }
 
-    public boolean isEncrypted() {
-        return isEncrypted;
+    private void close(Connection connection) {
+        if (connection == null || connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+            // Already unusable
+        }
+        connection.writer.release();
+        if (connection.in != null) {
+            pool.release(connection.in);
+            connection.in = null;
+        }
+        if (connection.user != null) {
+            online.remove(connection.user.getUserId(), connection);
+        }
+        connectionCount.decrementAndGet();
     }
 
-    public void setEncrypted(boolean encrypted) {
-        isEncrypted = encrypted;
+    private User userFor(String userId) {
+        return users.computeIfAbsent(userId, id -> new User(id, id, ""));
     }
 
-    public boolean isDelivered() {
-        return isDelivered;
+    private static class Connection {
+        final SocketChannel channel;
+        final FrameWriter writer;
+        final Deque<Message> inFlight = new ArrayDeque<>();
+        final Deque<Message> backlog = new ArrayDeque<>();
+        SelectionKey key;
+        ByteBuffer in;
+        User user;
+        int nextSequence;
+        boolean dirty;
+        boolean closed;
+
+        Connection(SocketChannel channel, FrameWriter writer) {
+            this.channel = channel;
+            this.writer = writer;
+        }
+    }
+}
+
+// TransportListener interface
+// Callbacks on a MessengerClient's reader thread
+interface TransportListener {
+    default void onMessage(Message message) {}
+
+    default void onReceipt(ReceiptType type, String conversationId, String messageId, String userId) {}
+}
+
+// MessengerClient class
+// Client for MessengerServer over a blocking socket. Frames are written on the caller's thread; a reader
+// thread handles acks, pushed messages, receipts and history pages. send() blocks while maxUnacked frames
+// are waiting for their ACK. Pushed messages are acknowledged after the listener has seen them.
+class MessengerClient implements Closeable {
+    private final SocketChannel channel;
+    private final User user;
+    private final BufferPool pool;
+    private final FrameWriter writer;
+    private final Semaphore unacked;
+    private final int maxUnacked;
+    private final AtomicInteger sequences = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<List<Message>>> pendingPages = new ConcurrentHashMap<>();
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Function<String, User> userLookup = this::userFor;
+    private final Thread reader;
+    private volatile TransportListener listener = new TransportListener() {};
+    private volatile boolean closed;
+
+    public MessengerClient(InetSocketAddress server, User user, int maxUnacked, BufferPool pool) throws IOException {
+        this.channel = SocketChannel.open(server);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.user = user;
+        this.pool = pool;
+        this.writer = new FrameWriter(pool);
+        this.maxUnacked = maxUnacked;
+        this.unacked = new Semaphore(maxUnacked);
+        users.put(user.getUserId(), user);
+        this.reader = new Thread(this::readLoop, "messenger-client-" + user.getUserId());
+        reader.setDaemon(true);
+        reader.start();
+        unacked.acquireUninterruptibly();
+        synchronized (writer) {
+            ByteBuffer out = writer.reserve(FrameCodec.HEADER_BYTES + MessageRecord.stringSize(user.getUserId()));
+            int start = FrameCodec.begin(out, FrameType.HELLO, sequences.getAndIncrement());
+            MessageRecord.putString(out, user.getUserId());
+            FrameCodec.end(out, start);
+            writer.writeTo(channel);
+        }
     }
 
-    public void setDelivered(boolean delivered) {
-        isDelivered = delivered;
+    public User getUser() {
+        return user;
     }
 
-    public boolean isRead() {
-        return isRead;
+    public void setListener(TransportListener listener) {
+        this.listener = listener;
     }
 
-    public void setRead(boolean read) {
-        isRead = read;
+    // Blocks while maxUnacked sends await their acks. Fails at once when the connection is closed; a send
+    // that fails hands its permit back, so failures never use up the window.
+    public void send(Message message) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        unacked.acquireUninterruptibly();
+        boolean sent = false;
+        try {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            synchronized (writer) {
+                ByteBuffer out = writer.reserve(FrameCodec.HEADER_BYTES + MessageRecord.encodedSize(message));
+                int start = FrameCodec.begin(out, FrameType.SEND, sequences.getAndIncrement());
+                MessageRecord.write(message, 0L, out);
+                FrameCodec.end(out, start);
+                writer.writeTo(channel);
+            }
+            sent = true;
+        } finally {
+            if (!sent) {
+                unacked.release();
+            }
+        }
     }
-}
 
-// MessageManager class
-class MessageManager {
-    private List<Message> sentMessages;
-    private List<Message> receivedMessages;
+    public void markRead(Message message) throws IOException {
+        synchronized (writer) {
+            int size = FrameCodec.HEADER_BYTES + 1 + MessageRecord.stringSize(message.getConversationId())
+                    + MessageRecord.stringSize(message.getMessageId()) + MessageRecord.stringSize(user.getUserId());
+            ByteBuffer out = writer.reserve(size);
+            int start = FrameCodec.begin(out, FrameType.RECEIPT, sequences.getAndIncrement());
+            out.put((byte) ReceiptType.READ.ordinal());
+            MessageRecord.putString(out, message.getConversationId());
+            MessageRecord.putString(out, message.getMessageId());
+            MessageRecord.putString(out, user.getUserId());
+            FrameCodec.end(out, start);
+            writer.writeTo(channel);
+        }
+    }
 
-    public MessageManager() {
-        this.sentMessages = new ArrayList<>();
-        this.receivedMessages = new ArrayList<>();
+    // Page of up to limit messages before beforeMessageId (null for the newest page), oldest first
+    public CompletableFuture<List<Message>> fetchHistory(String conversationId, String beforeMessageId, int limit)
+            throws IOException {
+        if (limit < 1 || limit > 0xFFFF) {
+            throw new IllegalArgumentException("History limit must be between 1 and 65535: " + limit);
+        }
+        String before = beforeMessageId == null ? "" : beforeMessageId;
+        CompletableFuture<List<Message>> page = new CompletableFuture<>();
+        synchronized (writer) {
+            int sequence = sequences.getAndIncrement();
+            pendingPages.put(sequence, page);
+            ByteBuffer out = writer.reserve(FrameCodec.HEADER_BYTES + MessageRecord.stringSize(conversationId)
+                    + MessageRecord.stringSize(before) + 2);
+            int start = FrameCodec.begin(out, FrameType.HISTORY_REQUEST, sequence);
+            MessageRecord.putString(out, conversationId);
+            MessageRecord.putString(out, before);
+            out.putShort((short) limit);
+            FrameCodec.end(out, start);
+            writer.writeTo(channel);
+        }
+        return page;
     }
 
-    public void sendMessage(Message message) {
-        sentMessages.add(message);
-        message.setDelivered(true);
+    // Blocks until every frame sent so far has been acknowledged; throws once the connection is closed,
+    // since acks still outstanding then will never come
+    public void awaitAcks() throws IOException {
+        try {
+            while (!unacked.tryAcquire(maxUnacked, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for acks", e);
+        }
+        unacked.release(maxUnacked);
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
     }
 
-    public void receiveMessage(Message message) {
-        receivedMessages.add(message);
-        System.out.println("Message received: " + message.getContent());
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        try {
+            reader.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public List<Message> getReceivedMessages() {
-        return receivedMessages;
+    private void readLoop() {
+        ByteBuffer in = pool.acquire();
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                int length;
+                while ((length = FrameCodec.completeFrameLength(in)) > 0) {
+                    int start = in.position();
+                    handleFrame(in, start, start + length);
+                    in.position(start + length);
+                }
+                in.compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                System.out.println("Messenger connection for " + user.getUserId() + " lost: " + e.getMessage());
+            }
+        } finally {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already unusable
+            }
+            pool.release(in);
+            synchronized (writer) {
+                writer.release();
+            }
+            // Wake senders blocked on acks that will never come
+            unacked.release(maxUnacked);
+            for (CompletableFuture<List<Message>> page : pendingPages.values()) {
+                page.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+    }
+
+    private void handleFrame(ByteBuffer in, int start, int end) throws IOException {
+        FrameType type = FrameCodec.type(in, start);
+        int sequence = FrameCodec.sequence(in, start);
+        int body = start + FrameCodec.HEADER_BYTES;
+        in.position(body);
+        if (type == FrameType.ACK) {
+            unacked.release();
+        } else if (type == FrameType.SEND) {
+            listener.onMessage(MessageRecord.decode(in, body, userLookup));
+            synchronized (writer) {
+                ByteBuffer out = writer.reserve(FrameCodec.HEADER_BYTES);
+                FrameCodec.end(out, FrameCodec.begin(out, FrameType.ACK, sequence));
+                writer.writeTo(channel);
+            }
+        } else if (type == FrameType.RECEIPT) {
+            ReceiptType receiptType = in.get() == ReceiptType.READ.ordinal() ? ReceiptType.READ : ReceiptType.DELIVERED;
+            String conversationId = MessageRecord.getString(in);
+            String messageId = MessageRecord.getString(in);
+            listener.onReceipt(receiptType, conversationId, messageId, MessageRecord.getString(in));
+        } else if (type == FrameType.HISTORY_PAGE) {
+            int count = in.getShort() & 0xFFFF;
+            List<Message> page = new ArrayList<>(count);
+            int offset = in.position();
+            for (int i = 0; i < count; i++) {
+                int length = MessageRecord.validLength(in, offset, end);
+                if (length < 0) {
+                    throw new IllegalArgumentException("Corrupt message record in history page");
+                }
+                page.add(MessageRecord.decode(in, offset, userLookup));
+                offset += length;
+            }
+            CompletableFuture<List<Message>> pending = pendingPages.remove(sequence);
+            if (pending != null) {
+                pending.complete(page);
+            }
+        } else {
+            throw new IllegalStateException("Unexpected " + type + " frame");
+        }
+    }
+
+    private User userFor(String userId) {
+        return users.computeIfAbsent(userId, id -> new User(id, id, ""));
     }
 }
 
 // MessageSearchStrategy interface
+// Encrypted messages never match: their content is ciphertext, and indexing the plaintext would keep an
+// unencrypted copy of every encrypted message next to it
 interface MessageSearchStrategy {
     List<Message> searchMessages(List<Message> messages, String keyword);
+
+    // Top matches across everything the strategy has indexed, newest first
+    default List<Message> search(String query, int limit) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " keeps no index to search");
+    }
 }
 
 // KeywordSearchStrategy class
@@ -134,7 +3255,7 @@ class KeywordSearchStrategy implements MessageSearchStrategy {
     public List<Message> searchMessages(List<Message> messages, String keyword) {
         List<Message> result = new ArrayList<>();
         for (Message message : messages) {
-            if (message.getContent().contains(keyword)) {
+            if (!message.isEncrypted() && message.getContent().contains(keyword)) {
                 result.add(message);
             }
         }
@@ -142,8 +3263,390 @@ class KeywordSearchStrategy implements MessageSearchStrategy {
     }
 }
 
+// InvertedIndexSearchStrategy class
+// Term -> posting list of message doc ids, kept current through MessageObserver callbacks.
+// Query syntax: space-separated terms are ANDed, "quoted words" must appear as a phrase,
+// and a trailing * matches any term with that prefix. Results come back most recent first.
+// Documents are kept as (conversation id, message id) and resolved through the MessageManager, so the
+// index never pins messages the manager has evicted; a message it no longer has is skipped.
+class InvertedIndexSearchStrategy implements MessageSearchStrategy, MessageObserver {
+    private final MessageManager messages;
+    private final NavigableMap<String, PostingList> postings = new TreeMap<>();
+    private final List<String> documentConversations = new ArrayList<>();
+    private final List<String> documentMessages = new ArrayList<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public InvertedIndexSearchStrategy(MessageManager messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public void onMessageStored(Message message) {
+        index(message);
+    }
+
+    // Doc ids are assigned in arrival order, so a higher id is a more recent message
+    public void index(Message message) {
+        if (message.isEncrypted()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (docIds.containsKey(message.getMessageId())) {
+                return;
+            }
+            int docId = documentMessages.size();
+            documentConversations.add(message.getConversationId());
+            documentMessages.add(message.getMessageId());
+            docIds.put(message.getMessageId(), docId);
+            for (String term : MessageTokenizer.tokenize(message.getContent())) {
+                postings.computeIfAbsent(term, k -> new PostingList()).add(docId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Searches only the given messages and returns them in list order, like every MessageSearchStrategy.
+    // Indexed messages are probed in the postings by doc id, so the cost follows the list, not the index;
+    // messages the index has never seen are tokenized and matched directly.
+    @Override
+    public List<Message> searchMessages(List<Message> messages, String keyword) {
+        SearchQuery parsed = SearchQuery.parse(keyword);
+        List<Message> results = new ArrayList<>();
+        if (parsed.clauses.isEmpty()) {
+            return results;
+        }
+        lock.readLock().lock();
+        try {
+            List<List<PostingList>> clauses = new ArrayList<>();
+            for (String clause : parsed.clauses) {
+                clauses.add(resolve(clause));
+            }
+            int[] scratch = new int[PostingList.BLOCK_SIZE];
+            for (Message message : messages) {
+                Integer doc = docIds.get(message.getMessageId());
+                boolean matches = doc == null
+                        ? matchesDirectly(parsed, message)
+                        : matchesAll(clauses, -1, doc, scratch) && matchesPhrases(parsed.phrases, message); // -1: no driver, probe every clause
+                if (matches) {
+                    results.add(message);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Searches every indexed message, newest first
+    @Override
+    public List<Message> search(String query, int limit) {
+        SearchQuery parsed = SearchQuery.parse(query);
+        List<Message> results = new ArrayList<>();
+        if (parsed.clauses.isEmpty()) {
+            return results;
+        }
+        lock.readLock().lock();
+        try {
+            List<List<PostingList>> clauses = new ArrayList<>();
+            for (String clause : parsed.clauses) {
+                List<PostingList> lists = resolve(clause);
+                if (lists.isEmpty()) {
+                    return results;
+                }
+                clauses.add(lists);
+            }
+            // Drive the intersection from the rarest clause and probe the others
+            int driver = 0;
+            for (int i = 1; i < clauses.size(); i++) {
+                if (totalSize(clauses.get(i)) < totalSize(clauses.get(driver))) {
+                    driver = i;
+                }
+            }
+            ReverseUnion candidates = new ReverseUnion(clauses.get(driver));
+            int[] scratch = new int[PostingList.BLOCK_SIZE];
+            for (int doc = candidates.next(); doc >= 0 && results.size() < limit; doc = candidates.next()) {
+                if (!matchesAll(clauses, driver, doc, scratch)) {
+                    continue;
+                }
+                Message message = messages.getMessage(documentConversations.get(doc), documentMessages.get(doc));
+                if (message != null && matchesPhrases(parsed.phrases, message)) {
+                    results.add(message);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean matchesDirectly(SearchQuery parsed, Message message) {
+        if (parsed.clauses.isEmpty() || message.isEncrypted()) {
+            return false;
+        }
+        List<String> tokens = MessageTokenizer.tokenize(message.getContent());
+        for (String clause : parsed.clauses) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (clause.endsWith("*") ? token.startsWith(clause.substring(0, clause.length() - 1)) : token.equals(clause)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return matchesPhrases(parsed.phrases, message);
+    }
+
+    private List<PostingList> resolve(String clause) {
+        if (clause.endsWith("*")) {
+            String prefix = clause.substring(0, clause.length() - 1);
+            return new ArrayList<>(postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values());
+        }
+        PostingList list = postings.get(clause);
+        return list == null ? Collections.emptyList() : List.of(list);
+    }
+
+    private static int totalSize(List<PostingList> lists) {
+        int size = 0;
+        for (PostingList list : lists) {
+            size += list.size();
+        }
+        return size;
+    }
+
+    private static boolean matchesAll(List<List<PostingList>> clauses, int driver, int doc, int[] scratch) {
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i == driver) {
+                continue;
+            }
+            boolean found = false;
+            for (PostingList list : clauses.get(i)) {
+                if (list.contains(doc, scratch)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Phrase terms are already known to be present; only their adjacency is checked here
+    private static boolean matchesPhrases(List<List<String>> phrases, Message message) {
+        if (phrases.isEmpty()) {
+            return true;
+        }
+        List<String> tokens = MessageTokenizer.tokenize(message.getContent());
+        for (List<String> phrase : phrases) {
+            if (Collections.indexOfSubList(tokens, phrase) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class SearchQuery {
+        final List<String> clauses = new ArrayList<>();
+        final List<List<String>> phrases = new ArrayList<>();
+
+        static SearchQuery parse(String query) {
+            SearchQuery parsed = new SearchQuery();
+            String[] parts = query.split("\"", -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 1) {
+                    List<String> phrase = MessageTokenizer.tokenize(parts[i]);
+                    parsed.clauses.addAll(phrase);
+                    if (phrase.size() > 1) {
+                        parsed.phrases.add(phrase);
+                    }
+                    continue;
+                }
+                for (String word : parts[i].trim().split("\\s+")) {
+                    List<String> terms = MessageTokenizer.tokenize(word);
+                    if (terms.isEmpty()) {
+                        continue;
+                    }
+                    parsed.clauses.addAll(terms.subList(0, terms.size() - 1));
+                    String last = terms.get(terms.size() - 1);
+                    parsed.clauses.add(word.endsWith("*") ? last + "*" : last);
+                }
+            }
+            return parsed;
+        }
+    }
+}
+
+// MessageTokenizer class
+class MessageTokenizer {
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
+
+// PostingList class
+// Ascending doc ids stored as varint deltas in blocks of BLOCK_SIZE; each block's first id and byte
+// offset live in a skip table, so any block can be decoded on its own for probes and reverse scans.
+class PostingList {
+    static final int BLOCK_SIZE = 128;
+
+    private byte[] data = new byte[8];
+    private int length;
+    private int[] blockFirstDoc = new int[1];
+    private int[] blockOffset = new int[1];
+    private int blockCount;
+    private int size;
+    private int lastDoc = -1;
+
+    public void add(int docId) {
+        if (docId <= lastDoc) {
+            return;
+        }
+        if (size % BLOCK_SIZE == 0) {
+            if (blockCount == blockFirstDoc.length) {
+                blockFirstDoc = Arrays.copyOf(blockFirstDoc, blockCount * 2);
+                blockOffset = Arrays.copyOf(blockOffset, blockCount * 2);
+            }
+            blockFirstDoc[blockCount] = docId;
+            blockOffset[blockCount] = length;
+            blockCount++;
+        } else {
+            writeVarInt(docId - lastDoc);
+        }
+        lastDoc = docId;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    // Decodes one block into out and returns how many ids it holds
+    public int decodeBlock(int block, int[] out) {
+        int count = block == blockCount - 1 ? size - block * BLOCK_SIZE : BLOCK_SIZE;
+        int doc = blockFirstDoc[block];
+        int offset = blockOffset[block];
+        out[0] = doc;
+        for (int i = 1; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += delta;
+            out[i] = doc;
+        }
+        return count;
+    }
+
+    public boolean contains(int docId, int[] scratch) {
+        if (size == 0 || docId < blockFirstDoc[0] || docId > lastDoc) {
+            return false;
+        }
+        int block = Arrays.binarySearch(blockFirstDoc, 0, blockCount, docId);
+        if (block >= 0) {
+            return true;
+        }
+        int count = decodeBlock(-block - 2, scratch);
+        return Arrays.binarySearch(scratch, 0, count, docId) >= 0;
+    }
+
+    private void writeVarInt(int value) {
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+}
+
+// ReverseUnion class
+// Walks the union of one or more posting lists from the highest doc id down, without duplicates
+class ReverseUnion {
+    private final PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> Integer.compare(b.current, a.current));
+    private int last = Integer.MAX_VALUE;
+
+    public ReverseUnion(List<PostingList> lists) {
+        for (PostingList list : lists) {
+            Cursor cursor = new Cursor(list);
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
+    }
+
+    // Returns the next lower doc id, or -1 when exhausted
+    public int next() {
+        while (!heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            int doc = cursor.current;
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            if (doc < last) {
+                last = doc;
+                return doc;
+            }
+        }
+        return -1;
+    }
+
+    private static class Cursor {
+        private final PostingList list;
+        private final int[] buffer = new int[PostingList.BLOCK_SIZE];
+        private int block;
+        private int position;
+        int current;
+
+        Cursor(PostingList list) {
+            this.list = list;
+            this.block = list.blockCount();
+        }
+
+        boolean advance() {
+            if (position == 0) {
+                if (block == 0) {
+                    return false;
+                }
+                position = list.decodeBlock(--block, buffer);
+            }
+            current = buffer[--position];
+            return true;
+        }
+    }
+}
+
 // SearchManager class
 class SearchManager {
+    private static final LongCounter SEARCHES = MetricsRegistry.forApp("WhatsappMessenger").counter("searches");
+    private static final LatencyHistogram SEARCH_MESSAGES = MetricsRegistry.forApp("WhatsappMessenger").histogram("searchMessages");
     private MessageSearchStrategy searchStrategy;
 
     public void setSearchStrategy(MessageSearchStrategy searchStrategy) {
@@ -154,28 +3657,277 @@ class SearchManager {
         if (searchStrategy == null) {
             throw new IllegalStateException("Search strategy is not set.");
         }
-        return searchStrategy.searchMessages(messages, keyword);
+        long start = System.nanoTime();
+        List<Message> results = searchStrategy.searchMessages(messages, keyword);
+        SEARCHES.increment();
+        SEARCH_MESSAGES.recordSince(start);
+        return results;
+    }
+
+    // Newest limit matches across the whole index, without a candidate list; needs an indexing strategy
+    public List<Message> search(String query, int limit) {
+        if (searchStrategy == null) {
+            throw new IllegalStateException("Search strategy is not set.");
+        }
+        long start = System.nanoTime();
+        List<Message> results = searchStrategy.search(query, limit);
+        SEARCHES.increment();
+        SEARCH_MESSAGES.recordSince(start);
+        return results;
+    }
+}
+
+
+// ConversationKeyStore class (Singleton)
+// One AES-256 key per conversation, generated on first use. The shared instance keeps keys in memory
+// only, so anything it encrypted is unreadable after a restart; a store opened on a key file appends each
+// new key to it (one "conversationId<TAB>Base64 key" line) and reloads them on open. The file is created
+// owner-only (rw-------) in one step, and an existing one that group or others can access is refused; a
+// file system without POSIX permissions is refused too, since nothing would protect the keys.
+class ConversationKeyStore {
+    private static ConversationKeyStore instance;
+    private final Map<String, SecretKey> keys = new ConcurrentHashMap<>();
+    private final Path keyFile;
+
+    private ConversationKeyStore() {
+        this.keyFile = null;
+    }
+
+    public ConversationKeyStore(Path keyFile) throws IOException {
+        this.keyFile = keyFile;
+        if (!keyFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            throw new IOException("Cannot restrict access to key file " + keyFile + ": no POSIX permissions");
+        }
+        if (Files.exists(keyFile)) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(keyFile);
+            permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+            if (!permissions.isEmpty()) {
+                throw new IOException("Key file " + keyFile + " is too open (" + permissions + "); it must be rw-------");
+            }
+            for (String line : Files.readAllLines(keyFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    keys.put(line.substring(0, tab), new SecretKeySpec(Base64.getDecoder().decode(line.substring(tab + 1)), "AES"));
+                }
+            }
+        } else {
+            Files.createFile(keyFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+    }
+
+    public static synchronized ConversationKeyStore getInstance() {
+        if (instance == null) {
+            instance = new ConversationKeyStore();
+        }
+        return instance;
+    }
+
+    public SecretKey keyFor(String conversationId) {
+        return keys.computeIfAbsent(conversationId, id -> {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(256);
+                SecretKey key = generator.generateKey();
+                if (keyFile != null) {
+                    String line = id + "\t" + Base64.getEncoder().encodeToString(key.getEncoded()) + "\n";
+                    Files.write(keyFile, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND,
+                            StandardOpenOption.SYNC);
+                }
+                return key;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES key generation is unavailable", e);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to persist key for conversation " + id, e);
+            }
+        });
+    }
+
+    // Null if no key was ever generated (or persisted) for the conversation
+    public SecretKey existingKeyFor(String conversationId) {
+        return keys.get(conversationId);
     }
 }
 
+// MessageCipher class
+// AES-GCM over ByteBuffers. Cipher, UTF-8 decoder and plaintext scratch buffer are reused per thread, so a
+// message is encoded straight into the scratch buffer and encrypted from there.
+// Ciphertext layout: [12-byte IV][ciphertext + 16-byte tag]; the message id is bound in as AAD.
+// IVs are a random 64-bit per-process prefix plus a counter. Keys can outlive the process (see
+// ConversationKeyStore), and a fresh 64-bit prefix on every start keeps a repeated IV out of reach.
+class MessageCipher {
+    static final int IV_BYTES = 12;
+    static final int TAG_BITS = 128;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is unavailable", e);
+        }
+    });
+    private static final long IV_PREFIX = new SecureRandom().nextLong();
+    private static final AtomicLong IV_COUNTER = new AtomicLong();
+    private static final ThreadLocal<CharsetDecoder> DECODERS = ThreadLocal.withInitial(StandardCharsets.UTF_8::newDecoder);
+    private static final ThreadLocal<ByteBuffer[]> SCRATCH = ThreadLocal.withInitial(() -> new ByteBuffer[] {
+            ByteBuffer.allocate(4096)});
+
+    private MessageCipher() {}
+
+    public static ByteBuffer encrypt(CharSequence plaintext, SecretKey key, String messageId) {
+        try {
+            ByteBuffer input = encodeUtf8(plaintext);
+            long counter = IV_COUNTER.getAndIncrement();
+            byte[] iv = ByteBuffer.allocate(IV_BYTES).putLong(IV_PREFIX + (counter >>> 32)).putInt((int) counter).array();
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(messageId.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer output = ByteBuffer.allocate(IV_BYTES + cipher.getOutputSize(input.remaining()));
+            output.put(iv);
+            cipher.doFinal(input, output);
+            output.flip();
+            return output.asReadOnlyBuffer();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to encrypt message " + messageId, e);
+        }
+    }
+
+    // Decrypts into the caller's buffer; throws if the ciphertext or its message id was tampered with
+    public static void decrypt(ByteBuffer ciphertext, SecretKey key, String messageId, ByteBuffer plaintextOut) {
+        try {
+            ByteBuffer input = ciphertext.duplicate();
+            byte[] iv = new byte[IV_BYTES];
+            input.get(iv);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(messageId.getBytes(StandardCharsets.UTF_8));
+            cipher.doFinal(input, plaintextOut);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to decrypt message " + messageId, e);
+        }
+    }
+
+    public static String decryptToString(ByteBuffer ciphertext, SecretKey key, String messageId) {
+        ByteBuffer plaintext = scratch(ciphertext.remaining());
+        decrypt(ciphertext, key, messageId, plaintext);
+        plaintext.flip();
+        try {
+            return DECODERS.get().decode(plaintext).toString();
+        } catch (CharacterCodingException e) {
+            throw new IllegalStateException("Decrypted message " + messageId + " is not valid UTF-8", e);
+        }
+    }
+
+    // Hand-rolled UTF-8 straight into the scratch buffer's array; CharsetEncoder is several times slower
+    private static ByteBuffer encodeUtf8(CharSequence text) {
+        ByteBuffer buffer = scratch(text.length() * 3);
+        byte[] out = buffer.array();
+        int position = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[position++] = (byte) '?';
+            } else {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer.limit(position);
+        return buffer;
+    }
+
+    private static ByteBuffer scratch(int minimumCapacity) {
+        ByteBuffer[] holder = SCRATCH.get();
+        if (holder[0].capacity() < minimumCapacity) {
+            holder[0] = ByteBuffer.allocate(Math.max(minimumCapacity, holder[0].capacity() * 2));
+        }
+        holder[0].clear();
+        return holder[0];
+    }
+}
 
 // MessageEncryptionDecorator class
+// Encrypts the wrapped message once with its conversation's AES-GCM key and caches the ciphertext.
+// Storage and transport carry the Base64 content with the encrypted flag set; fromStored turns such a
+// record back into a decorator that can decrypt it.
 class MessageEncryptionDecorator extends Message {
-    private Message message;
+    private final Message message;
+    private final SecretKey key;
+    private final ByteBuffer ciphertext;
+    private volatile String encodedContent;
 
     public MessageEncryptionDecorator(Message message) {
-        super(message.getMessageId(), message.getSender(), message.getReceivers(), message.getContent());
+        this(message, ConversationKeyStore.getInstance());
+    }
+
+    public MessageEncryptionDecorator(Message message, ConversationKeyStore keyStore) {
+        this(message, keyStore.keyFor(message.getConversationId()));
+    }
+
+    private MessageEncryptionDecorator(Message message, SecretKey key) {
+        this(message, key, MessageCipher.encrypt(message.getContent(), key, message.getMessageId()));
+    }
+
+    private MessageEncryptionDecorator(Message message, SecretKey key, ByteBuffer ciphertext) {
+        super(message);
         this.message = message;
+        this.key = key;
+        this.ciphertext = ciphertext;
+    }
+
+    // For an encrypted message read back from a SegmentedMessageStore or the transport; the wrapped
+    // message is the stored one, whose content stays the Base64 ciphertext
+    public static MessageEncryptionDecorator fromStored(Message stored, ConversationKeyStore keyStore) {
+        if (!stored.isEncrypted()) {
+            throw new IllegalArgumentException("Message " + stored.getMessageId() + " is not encrypted");
+        }
+        SecretKey key = keyStore.existingKeyFor(stored.getConversationId());
+        if (key == null) {
+            throw new IllegalStateException("No key for conversation " + stored.getConversationId()
+                    + "; messages encrypted with an in-memory key store cannot be read after a restart");
+        }
+        ByteBuffer ciphertext = ByteBuffer.wrap(Base64.getDecoder().decode(stored.getContent())).asReadOnlyBuffer();
+        return new MessageEncryptionDecorator(stored, key, ciphertext);
     }
 
+    // Base64 of the cached ciphertext, for text-only consumers
     @Override
     public String getContent() {
-        return encrypt(message.getContent());
+        String encoded = encodedContent;
+        if (encoded == null) {
+            encoded = StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(getCiphertext())).toString();
+            encodedContent = encoded;
+        }
+        return encoded;
+    }
+
+    // Read-only view of IV + ciphertext + tag; no copy is made
+    public ByteBuffer getCiphertext() {
+        return ciphertext.duplicate();
+    }
+
+    public void decryptInto(ByteBuffer plaintextOut) {
+        MessageCipher.decrypt(getCiphertext(), key, getMessageId(), plaintextOut);
+    }
+
+    public String decrypt() {
+        return MessageCipher.decryptToString(getCiphertext(), key, getMessageId());
     }
 
-    private String encrypt(String content) {
-        // Simple encryption logic for demonstration (reverse the string)
-        return new StringBuilder(content).reverse().toString();
+    public Message getWrappedMessage() {
+        return message;
     }
 
     @Override
@@ -195,8 +3947,10 @@ public class WhatsappMessenger {
         Message message1 = new Message("msg1", user1, List.of(user2), "Hi Alice, how are you?");
         Message message2 = new Message("msg2", user2, List.of(user1), "Hi John, I'm doing well.");
 
-        // Create message manager
+        // Create message manager with a search index kept current on every send/receive
         MessageManager messageManager = new MessageManager();
+        InvertedIndexSearchStrategy searchIndex = new InvertedIndexSearchStrategy(messageManager);
+        messageManager.addObserver(searchIndex);
 
         // Receive messages
         messageManager.receiveMessage(message1);
@@ -204,17 +3958,130 @@ public class WhatsappMessenger {
 
         // Search messages
         SearchManager searchManager = new SearchManager();
-        searchManager.setSearchStrategy(new KeywordSearchStrategy());
-        List<Message> searchResults = searchManager.searchMessages(messageManager.getReceivedMessages(), "John");
+        searchManager.setSearchStrategy(searchIndex);
+        List<Message> searchResults = searchManager.searchMessages(messageManager.getReceivedMessages(), "john \"doing well\"");
+
+        // Open the chat: one page of the most recent messages
+        List<Message> page = messageManager.getRecentMessages(message1.getConversationId(), 50);
+        System.out.println("Conversation " + message1.getConversationId() + " has " + page.size() + " recent messages");
 
         // Print search results
         System.out.println("Search Results:");
         for (Message message : searchResults) {
             System.out.println(message.getContent());
         }
+        System.out.println("Newest match for hi*: " + searchManager.search("hi*", 1).get(0).getContent());
+
+        // Deliver a group message through per-receiver queues with batched receipts
+        User user3 = new User("user3", "bob.jones", "password3");
+        DeliveryPipeline deliveryPipeline = new DeliveryPipeline(1024, 4096, 64, 50);
+        deliveryPipeline.addReceiptListener(batch -> System.out.println("Flushed " + batch.size() + " receipts"));
+        MessageManager johnsMessages = new MessageManager(deliveryPipeline);
+        MessageManager alicesMessages = new MessageManager(deliveryPipeline);
+        deliveryPipeline.connect(user2, alicesMessages);
+        Message groupMessage = new Message("msg3", user1, List.of(user2, user3), "Lunch at noon?");
+        johnsMessages.sendMessage(groupMessage);
+        deliveryPipeline.shutdown();
+        System.out.println("Delivered to Alice: " + groupMessage.isDeliveredTo(user2)
+                + ", backlog for offline Bob: " + deliveryPipeline.getBacklog(user3));
+
+        // Back a manager with a segmented on-disk log, then page the conversation back through mmap after a restart
+        Map<String, User> userDirectory = Map.of(user1.getUserId(), user1, user2.getUserId(), user2, user3.getUserId(), user3);
+        try {
+            Path storeDirectory = Files.createTempDirectory("whatsapp-store");
+            try (SegmentedMessageStore store = new SegmentedMessageStore(storeDirectory, userDirectory::get)) {
+                MessageManager storedMessages = new MessageManager(null, store);
+                storedMessages.receiveMessage(message1);
+                storedMessages.receiveMessage(message2);
+                store.append(message2, 0L); // Already stored: ignored
+                store.delete(message1.getMessageId());
+            }
+            try (SegmentedMessageStore store = new SegmentedMessageStore(storeDirectory, userDirectory::get)) {
+                MessageManager restarted = new MessageManager(null, store);
+                System.out.println("Stored messages in conversation after restart: "
+                        + restarted.getRecentMessages(message1.getConversationId(), 50).size());
+            }
+        } catch (IOException e) {
+            System.out.println("Message store unavailable: " + e.getMessage());
+        }
+
+        // Group conversations: messages stored once, members tracked by read cursor
+        GroupMessenger groupMessenger = new GroupMessenger(null, 256);
+        GroupConversation team = groupMessenger.createGroup("team", List.of(user1, user2, user3));
+        groupMessenger.send(team, user1, "msg4", "Standup in 5");
+        System.out.println("Unread for Bob in " + team.getGroupId() + ": " + team.unreadCount(user3));
+        team.markReadUpTo(user3, team.size());
+        Message standup = team.recent(1).get(0);
+        System.out.println("Read by " + standup.getReadCount() + " of " + standup.getReceiverCount());
+
+        // Compact binary form for caches and transport
+        UserRegistry userRegistry = new UserRegistry();
+        ReceiverSetRegistry receiverSets = new ReceiverSetRegistry();
+        CompactMessage compact = CompactMessage.from(groupMessage, userRegistry, receiverSets);
+        ByteBuffer wire = ByteBuffer.allocate(MessageCodec.encodedSize(compact));
+        MessageCodec.encode(compact, wire);
+        MessageView view = MessageCodec.view(wire, 0);
+        System.out.println("Encoded " + view.messageId() + " in " + view.encodedSize() + " bytes: "
+                + StandardCharsets.UTF_8.decode(view.content()) + ", delivered to Alice: " + view.isDeliveredTo(0)
+                + ", to Bob: " + view.isDeliveredTo(1));
+
+        // Send through the NIO transport: the server stores the message, acks it and pushes it to Alice
+        BufferPool bufferPool = new BufferPool(32 * 1024, 64);
+        try (MessengerServer server = new MessengerServer(new MessageManager(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64, bufferPool)) {
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            CompletableFuture<Message> pushed = new CompletableFuture<>();
+            CompletableFuture<ReceiptType> readReceipt = new CompletableFuture<>();
+            try (MessengerClient john = new MessengerClient(address, user1, 16, bufferPool);
+                 MessengerClient alice = new MessengerClient(address, user2, 16, bufferPool)) {
+                john.setListener(new TransportListener() {
+                    @Override
+                    public void onReceipt(ReceiptType type, String conversationId, String messageId, String userId) {
+                        if (type == ReceiptType.READ) {
+                            readReceipt.complete(type);
+                        }
+                    }
+                });
+                alice.setListener(new TransportListener() {
+                    @Override
+                    public void onMessage(Message message) {
+                        pushed.complete(message);
+                    }
+                });
+                alice.awaitAcks();
+                john.send(new Message("msg5", user1, List.of(user2), "Sent over the wire"));
+                Message received = pushed.get(5, TimeUnit.SECONDS);
+                alice.markRead(received);
+                System.out.println("Alice received over the transport: " + received.getContent()
+                        + ", receipt back to John: " + readReceipt.get(5, TimeUnit.SECONDS));
+                System.out.println("History page size: "
+                        + alice.fetchHistory(received.getConversationId(), null, 50).get(5, TimeUnit.SECONDS).size());
+            }
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+            System.out.println("Transport unavailable: " + e.getMessage());
+        }
+
+        // Add message encryption using decorators, with keys kept on disk so stored ciphertext stays readable
+        try {
+            Path secrets = Files.createTempDirectory("whatsapp-keys");
+            Path storeDirectory = Files.createTempDirectory("whatsapp-encrypted");
+            MessageEncryptionDecorator encryptedMessage =
+                    new MessageEncryptionDecorator(message2, new ConversationKeyStore(secrets.resolve("conversation.keys")));
+            System.out.println("Encrypted content: " + encryptedMessage.getContent());
+            try (SegmentedMessageStore store = new SegmentedMessageStore(storeDirectory, userDirectory::get)) {
+                store.append(encryptedMessage, 0L);
+            }
+            try (SegmentedMessageStore store = new SegmentedMessageStore(storeDirectory, userDirectory::get)) {
+                Message stored = store.find(encryptedMessage.getConversationId(), encryptedMessage.getMessageId());
+                ConversationKeyStore reopened = new ConversationKeyStore(secrets.resolve("conversation.keys"));
+                System.out.println("Decrypted content: " + MessageEncryptionDecorator.fromStored(stored, reopened).decrypt());
+            }
+        } catch (IOException e) {
+            System.out.println("Encrypted store unavailable: " + e.getMessage());
+        }
 
-        // Add message encryption using decorators
-        Message encryptedMessage = new MessageEncryptionDecorator(message2);
-        System.out.println("Encrypted content: " + encryptedMessage.getContent());
+        // Runtime metrics, also exposed over JMX
+        MetricsRegistry.forApp("WhatsappMessenger").dump(System.out);
     }
 }
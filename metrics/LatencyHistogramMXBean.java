@@ -0,0 +1,17 @@
+package metrics;
+
+// LatencyHistogramMXBean interface
+// Values are in microseconds, computed from a fresh snapshot on every read
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,31 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// LongCounter class
+// Lock-free event counter. Contended increments spread over LongAdder cells instead of retrying one CAS.
+public final class LongCounter implements LongCounterMXBean {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    LongCounter(String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,6 @@
+package metrics;
+
+// LongCounterMXBean interface
+public interface LongCounterMXBean {
+    long getCount();
+}
@@ -0,0 +1,80 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// MetricsRegistry class
+// One registry per app. Metrics are created once, typically into static final fields, and every one is
+// registered with the platform MBean server as metrics:app=<app>,type=<Counter|LatencyHistogram>,name=<name>,
+// so the hot path only ever touches the metric itself.
+public final class MetricsRegistry {
+    private static final Map<String, MetricsRegistry> registries = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String app;
+    private final Map<String, LongCounter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private MetricsRegistry(String app) {
+        this.app = app;
+    }
+
+    public static MetricsRegistry forApp(String app) {
+        return registries.computeIfAbsent(app, MetricsRegistry::new);
+    }
+
+    public LongCounter counter(String name) {
+        return counters.computeIfAbsent(name, key -> register("Counter", key, new LongCounter(key)));
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> register("LatencyHistogram", key, new LatencyHistogram(key)));
+    }
+
+    // Writes one line per metric, sorted by name
+    public void dump(PrintStream out) {
+        StringBuilder snapshot = new StringBuilder();
+        for (LongCounter counter : new TreeMap<>(counters).values()) {
+            snapshot.append(app).append('.').append(counter.getName()).append(" count=").append(counter.getCount())
+                    .append(System.lineSeparator());
+        }
+        for (LatencyHistogram histogram : new TreeMap<>(histograms).values()) {
+            snapshot.append(app).append('.').append(histogram.getName()).append(' ').append(histogram.snapshot())
+                    .append(System.lineSeparator());
+        }
+        out.print(snapshot);
+    }
+
+    // Dumps a snapshot every period on a shared daemon thread; cancel the returned future to stop
+    public ScheduledFuture<?> dumpEvery(long period, TimeUnit unit, PrintStream out) {
+        return dumper.scheduleAtFixedRate(() -> dump(out), period, period, unit);
+    }
+
+    private <T> T register(String type, String name, T metric) {
+        try {
+            ObjectName objectName = new ObjectName("metrics", new Hashtable<>(Map.of(
+                    "app", ObjectName.quote(app), "type", type, "name", ObjectName.quote(name))));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            // Another class loader in this JVM registered the same metric first; JMX keeps showing that one
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metric " + app + "." + name, e);
+        }
+        return metric;
+    }
+}